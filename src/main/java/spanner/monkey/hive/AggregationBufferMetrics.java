@@ -0,0 +1,50 @@
+package spanner.monkey.hive;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Reports the estimated size of finished aggregation buffers as job counters
+ * and logs the largest one when the evaluator is closed.
+ */
+public class AggregationBufferMetrics {
+    static final Log LOG = LogFactory.getLog(AggregationBufferMetrics.class.getName());
+
+    public static final String COUNTER_GROUP = "monkey-spanner";
+
+    private final String name;
+    // the reporter is only set on the first row, after configure()
+    private MapredContext mapredContext;
+
+    private long buffers = 0;
+    private long totalBytes = 0;
+    private long maxBytes = 0;
+
+    public AggregationBufferMetrics(String name) {
+        this.name = name;
+    }
+
+    public void configure(MapredContext mapredContext) {
+        this.mapredContext = mapredContext;
+    }
+
+    public void record(EstimableAggregationBuffer buffer) {
+        long bytes = buffer.getEstimatedBytes();
+        buffers++;
+        totalBytes += bytes;
+        maxBytes = Math.max(maxBytes, bytes);
+        Reporter reporter = (mapredContext != null) ? mapredContext.getReporter() : null;
+        if (reporter != null) {
+            reporter.incrCounter(COUNTER_GROUP, name + " buffer bytes", bytes);
+        }
+    }
+
+    public void close() {
+        if (buffers > 0) {
+            LOG.info(String.format("%s: %d buffers, %d bytes in total, largest %d bytes",
+                    name, buffers, totalBytes, maxBytes));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package spanner.monkey.hive;
+
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AbstractAggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationType;
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+
+import java.util.Map;
+
+/**
+ * Aggregation buffer that keeps a running estimate of its heap footprint,
+ * so Hive's map-side hash aggregation can flush before the mapper runs out
+ * of memory instead of users having to turn hive.map.aggr off.
+ * AggregationType is not inherited, subclasses must carry
+ * {@code @AggregationType(estimable = true)} themselves.
+ */
+@AggregationType(estimable = true)
+public abstract class EstimableAggregationBuffer extends AbstractAggregationBuffer {
+
+    private long estimatedBytes;
+
+    public void addBytes(long bytes) {
+        estimatedBytes += bytes;
+    }
+
+    public void resetBytes() {
+        estimatedBytes = 0;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    @Override
+    public int estimate() {
+        return (int) Math.min(Integer.MAX_VALUE, getEstimatedBytes());
+    }
+
+    /**
+     * Bytes taken by one new HashMap entry holding the given key and value.
+     */
+    public static long sizeOfEntry(Object key, ObjectInspector keyOI, Object value, ObjectInspector valueOI) {
+        return JavaDataModel.get().hashMapEntry() + sizeOf(key, keyOI) + sizeOf(value, valueOI);
+    }
+
+    /**
+     * Rough heap size of a standard (java or writable) object.
+     */
+    public static long sizeOf(Object o, ObjectInspector oi) {
+        if (o == null) {
+            return 0;
+        }
+
+        JavaDataModel model = JavaDataModel.get();
+        switch (oi.getCategory()) {
+            case PRIMITIVE:
+                if (o instanceof Text) {
+                    return model.object() + model.lengthForByteArrayOfSize(((Text) o).getLength());
+                } else if (o instanceof String) {
+                    return model.lengthForStringOfLength(((String) o).length());
+                } else if (o instanceof BytesWritable) {
+                    return model.object() + model.lengthForByteArrayOfSize(((BytesWritable) o).getLength());
+                } else if (o instanceof byte[]) {
+                    return model.lengthForByteArrayOfSize(((byte[]) o).length);
+                }
+                return model.object() + model.primitive2();
+            case LIST: {
+                ListObjectInspector loi = (ListObjectInspector) oi;
+                int n = loi.getListLength(o);
+                long ret = model.object() + model.lengthForObjectArrayOfSize(n);
+                for (int i = 0; i < n; i++) {
+                    ret += sizeOf(loi.getListElement(o, i), loi.getListElementObjectInspector());
+                }
+                return ret;
+            }
+            case MAP: {
+                MapObjectInspector moi = (MapObjectInspector) oi;
+                long ret = model.hashMap(moi.getMapSize(o));
+                for (Map.Entry<?, ?> e : moi.getMap(o).entrySet()) {
+                    ret += sizeOf(e.getKey(), moi.getMapKeyObjectInspector())
+                            + sizeOf(e.getValue(), moi.getMapValueObjectInspector());
+                }
+                return ret;
+            }
+            case STRUCT: {
+                StructObjectInspector soi = (StructObjectInspector) oi;
+                long ret = model.object() + model.lengthForObjectArrayOfSize(soi.getAllStructFieldRefs().size());
+                for (StructField f : soi.getAllStructFieldRefs()) {
+                    ret += sizeOf(soi.getStructFieldData(o, f), f.getFieldObjectInspector());
+                }
+                return ret;
+            }
+            default:
+                return model.object();
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package spanner.monkey.hive;
+
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.LongWritable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@Description(name = "agg_row_vectors",
+        value = "_FUNC_(Array, 'sum,min,max,mean,nnz,count') - Returns a struct of arrays holding " +
+                "the requested element-wise statistics.",
+        extended = "All statistics are computed in one pass. sum, min, max and mean are Array<double>, " +
+                "nnz (non-zero elements) and count (non-null elements) are Array<bigint>. " +
+                "min, max and mean are null for an index that only had null elements.")
+public class GenericUDAFAggRowVectors extends AbstractGenericUDAFResolver {
+    static final Log LOG = LogFactory.getLog(GenericUDAFAggRowVectors.class.getName());
+
+    static final String SUM = "sum";
+    static final String MIN = "min";
+    static final String MAX = "max";
+    static final String MEAN = "mean";
+    static final String NNZ = "nnz";
+    static final String COUNT = "count";
+
+    // non-null counts, always part of the partial result since mean needs them
+    static final String COUNT_FIELD = "__count";
+
+    public GenericUDAFAggRowVectors() {
+    }
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+            throws SemanticException {
+
+        if (parameters.length != 2) {
+            throw new UDFArgumentTypeException(parameters.length - 1,
+                    "Two arguments are expected.");
+        }
+
+        if (parameters[0].getCategory() != ObjectInspector.Category.LIST) {
+            throw new UDFArgumentTypeException(0,
+                    "Only list argument are accepted but "
+                            + parameters[0].getTypeName() + " was passed as parameter 1.");
+        }
+
+        TypeInfo elementTypeInfo = ((ListTypeInfo) parameters[0]).getListElementTypeInfo();
+        if (elementTypeInfo.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0,
+                    "Only primitive array are accepted but array of "
+                            + elementTypeInfo.getTypeName() + " was passed as parameter 1.");
+        }
+
+        switch (((PrimitiveTypeInfo) elementTypeInfo).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+            case DECIMAL:
+                break;
+            default:
+                throw new UDFArgumentTypeException(0,
+                        "Only numeric type array are accepted but array of "
+                                + elementTypeInfo.getTypeName() + " is passed.");
+        }
+
+        if (parameters[1].getCategory() != ObjectInspector.Category.PRIMITIVE ||
+                ((PrimitiveTypeInfo) parameters[1]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.STRING) {
+            throw new UDFArgumentTypeException(1,
+                    "Only a constant string of statistics is accepted but "
+                            + parameters[1].getTypeName() + " was passed as parameter 2.");
+        }
+
+        return new GenericUDAFAggRowVectorsEvaluator();
+    }
+
+    public static class GenericUDAFAggRowVectorsEvaluator extends GenericUDAFEvaluator {
+
+        // input
+        private ListObjectInspector inputOI;
+        private PrimitiveObjectInspector eleOI;
+
+        // For PARTIAL2 and FINAL: struct<stat1, stat2, ..., __count>
+        private StructObjectInspector internalMergeOI;
+        private StructField[] statFields;
+        private StructField countField;
+
+        // requested statistics, taken from the constant argument on the map side
+        // and from the partial's field names on the reduce side
+        private String[] stats;
+        private boolean needSum;
+        private boolean needMin;
+        private boolean needMax;
+        private boolean needNnz;
+        // whether sum was requested, otherwise mean's partial carries the sum
+        private boolean hasSum;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+                throws HiveException {
+            super.init(m, parameters);
+
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                inputOI = (ListObjectInspector) parameters[0];
+                eleOI = (PrimitiveObjectInspector) inputOI.getListElementObjectInspector();
+                stats = parseStats(parameters[1]);
+            } else {
+                internalMergeOI = (StructObjectInspector) parameters[0];
+                List<? extends StructField> fields = internalMergeOI.getAllStructFieldRefs();
+                stats = new String[fields.size() - 1];
+                statFields = new StructField[fields.size() - 1];
+                for (int i = 0; i < stats.length; i++) {
+                    statFields[i] = fields.get(i);
+                    stats[i] = fields.get(i).getFieldName();
+                }
+                countField = internalMergeOI.getStructFieldRef(COUNT_FIELD);
+            }
+
+            List<String> statList = Arrays.asList(stats);
+            hasSum = statList.contains(SUM);
+            needSum = hasSum || statList.contains(MEAN);
+            needMin = statList.contains(MIN);
+            needMax = statList.contains(MAX);
+            needNnz = statList.contains(NNZ);
+
+            ArrayList<String> fieldNames = new ArrayList<String>();
+            ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+            for (String stat : stats) {
+                fieldNames.add(stat);
+                fieldOIs.add(statOI(stat));
+            }
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                fieldNames.add(COUNT_FIELD);
+                fieldOIs.add(statOI(COUNT));
+            }
+            return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+        }
+
+        private static String[] parseStats(ObjectInspector oi) throws HiveException {
+            if (!(oi instanceof ConstantObjectInspector)) {
+                throw new UDFArgumentTypeException(1, "The statistics should be a constant string.");
+            }
+            Object v = ((ConstantObjectInspector) oi).getWritableConstantValue();
+            if (v == null) {
+                throw new UDFArgumentTypeException(1, "The statistics should not be null.");
+            }
+
+            List<String> ret = new ArrayList<String>();
+            for (String s : v.toString().split(",")) {
+                String stat = s.trim().toLowerCase();
+                if (!(SUM.equals(stat) || MIN.equals(stat) || MAX.equals(stat) ||
+                        MEAN.equals(stat) || NNZ.equals(stat) || COUNT.equals(stat))) {
+                    throw new UDFArgumentTypeException(1, "Unknown statistic '" + stat
+                            + "', only sum, min, max, mean, nnz and count are supported.");
+                }
+                if (ret.contains(stat)) {
+                    throw new UDFArgumentTypeException(1, "Statistic '" + stat + "' is given twice.");
+                }
+                ret.add(stat);
+            }
+            return ret.toArray(new String[ret.size()]);
+        }
+
+        private static ObjectInspector statOI(String stat) {
+            if (NNZ.equals(stat) || COUNT.equals(stat)) {
+                return ObjectInspectorFactory.getStandardListObjectInspector(
+                        PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+            }
+            return ObjectInspectorFactory.getStandardListObjectInspector(
+                    PrimitiveObjectInspectorFactory.writableDoubleObjectInspector);
+        }
+
+        /**
+         * One primitive slot per vector index for every statistic, arrays that are
+         * not needed by the requested statistics are left empty.
+         */
+        static class VectorStatsAggregationBuffer implements AggregationBuffer {
+            double[] sums;
+            double[] comps;
+            double[] mins;
+            double[] maxs;
+            long[] counts;
+            long[] nnzs;
+            int size;
+        }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            VectorStatsAggregationBuffer myagg = (VectorStatsAggregationBuffer) agg;
+            int capacity = 16;
+            myagg.counts = new long[capacity];
+            myagg.sums = new double[needSum ? capacity : 0];
+            myagg.comps = new double[needSum ? capacity : 0];
+            myagg.mins = new double[needMin ? capacity : 0];
+            Arrays.fill(myagg.mins, Double.POSITIVE_INFINITY);
+            myagg.maxs = new double[needMax ? capacity : 0];
+            Arrays.fill(myagg.maxs, Double.NEGATIVE_INFINITY);
+            myagg.nnzs = new long[needNnz ? capacity : 0];
+            myagg.size = 0;
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            VectorStatsAggregationBuffer ret = new VectorStatsAggregationBuffer();
+            reset(ret);
+            return ret;
+        }
+
+        private void ensureCapacity(VectorStatsAggregationBuffer myagg, int n) {
+            if (n > myagg.size) {
+                int capacity = myagg.counts.length;
+                if (n > capacity) {
+                    int newCapacity = Math.max(n, capacity * 2);
+                    myagg.counts = Arrays.copyOf(myagg.counts, newCapacity);
+                    if (needSum) {
+                        myagg.sums = Arrays.copyOf(myagg.sums, newCapacity);
+                        myagg.comps = Arrays.copyOf(myagg.comps, newCapacity);
+                    }
+                    if (needMin) {
+                        myagg.mins = Arrays.copyOf(myagg.mins, newCapacity);
+                        Arrays.fill(myagg.mins, capacity, newCapacity, Double.POSITIVE_INFINITY);
+                    }
+                    if (needMax) {
+                        myagg.maxs = Arrays.copyOf(myagg.maxs, newCapacity);
+                        Arrays.fill(myagg.maxs, capacity, newCapacity, Double.NEGATIVE_INFINITY);
+                    }
+                    if (needNnz) {
+                        myagg.nnzs = Arrays.copyOf(myagg.nnzs, newCapacity);
+                    }
+                }
+                myagg.size = n;
+            }
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters)
+                throws HiveException {
+            Object p = parameters[0];
+            if (p == null) {
+                return;
+            }
+
+            VectorStatsAggregationBuffer myagg = (VectorStatsAggregationBuffer) agg;
+            int n = inputOI.getListLength(p);
+            ensureCapacity(myagg, n);
+
+            for (int i = 0; i < n; i++) {
+                Object e = inputOI.getListElement(p, i);
+                if (e == null) {
+                    continue;
+                }
+                double v = PrimitiveObjectInspectorUtils.getDouble(e, eleOI);
+                myagg.counts[i]++;
+                if (needSum) {
+                    GenericUDAFSumRowVectors.compensatedAdd(myagg.sums, myagg.comps, i, v);
+                }
+                if (needMin && v < myagg.mins[i]) {
+                    myagg.mins[i] = v;
+                }
+                if (needMax && v > myagg.maxs[i]) {
+                    myagg.maxs[i] = v;
+                }
+                if (needNnz && v != 0) {
+                    myagg.nnzs[i]++;
+                }
+            }
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            VectorStatsAggregationBuffer myagg = (VectorStatsAggregationBuffer) agg;
+
+            Object[] ret = new Object[stats.length + 1];
+            for (int s = 0; s < stats.length; s++) {
+                // the partial of mean is the plain sum, divided by __count at the end
+                ret[s] = statValues(myagg, MEAN.equals(stats[s]) ? SUM : stats[s]);
+            }
+            ret[stats.length] = statValues(myagg, COUNT);
+            return ret;
+        }
+
+        @Override
+        public void merge(AggregationBuffer agg, Object partial)
+                throws HiveException {
+            if (partial == null) {
+                return;
+            }
+
+            VectorStatsAggregationBuffer myagg = (VectorStatsAggregationBuffer) agg;
+
+            Object counts = internalMergeOI.getStructFieldData(partial, countField);
+            ListObjectInspector countsOI = (ListObjectInspector) countField.getFieldObjectInspector();
+            PrimitiveObjectInspector countOI = (PrimitiveObjectInspector) countsOI.getListElementObjectInspector();
+            int n = countsOI.getListLength(counts);
+            ensureCapacity(myagg, n);
+            for (int i = 0; i < n; i++) {
+                myagg.counts[i] += PrimitiveObjectInspectorUtils.getLong(countsOI.getListElement(counts, i), countOI);
+            }
+
+            for (int s = 0; s < stats.length; s++) {
+                String stat = stats[s];
+                if (COUNT.equals(stat)) {
+                    // already merged from __count
+                    continue;
+                }
+
+                Object values = internalMergeOI.getStructFieldData(partial, statFields[s]);
+                ListObjectInspector valuesOI = (ListObjectInspector) statFields[s].getFieldObjectInspector();
+                PrimitiveObjectInspector valueOI = (PrimitiveObjectInspector) valuesOI.getListElementObjectInspector();
+                int len = Math.min(n, valuesOI.getListLength(values));
+                for (int i = 0; i < len; i++) {
+                    Object e = valuesOI.getListElement(values, i);
+                    if (e == null) {
+                        continue;
+                    }
+                    if (NNZ.equals(stat)) {
+                        myagg.nnzs[i] += PrimitiveObjectInspectorUtils.getLong(e, valueOI);
+                        continue;
+                    }
+
+                    double v = PrimitiveObjectInspectorUtils.getDouble(e, valueOI);
+                    if (MIN.equals(stat)) {
+                        myagg.mins[i] = Math.min(myagg.mins[i], v);
+                    } else if (MAX.equals(stat)) {
+                        myagg.maxs[i] = Math.max(myagg.maxs[i], v);
+                    } else if (SUM.equals(stat) || !hasSum) {
+                        // the sum is carried by the sum field, or by mean's when sum was not requested
+                        GenericUDAFSumRowVectors.compensatedAdd(myagg.sums, myagg.comps, i, v);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            VectorStatsAggregationBuffer myagg = (VectorStatsAggregationBuffer) agg;
+
+            Object[] ret = new Object[stats.length];
+            for (int s = 0; s < stats.length; s++) {
+                ret[s] = statValues(myagg, stats[s]);
+            }
+            return ret;
+        }
+
+        private static List<Object> statValues(VectorStatsAggregationBuffer myagg, String stat) {
+            ArrayList<Object> ret = new ArrayList<Object>(myagg.size);
+            for (int i = 0; i < myagg.size; i++) {
+                long count = myagg.counts[i];
+                if (COUNT.equals(stat)) {
+                    ret.add(new LongWritable(count));
+                } else if (NNZ.equals(stat)) {
+                    ret.add(new LongWritable(myagg.nnzs[i]));
+                } else if (SUM.equals(stat)) {
+                    ret.add(new DoubleWritable(myagg.sums[i] + myagg.comps[i]));
+                } else if (count == 0) {
+                    ret.add(null);
+                } else if (MIN.equals(stat)) {
+                    ret.add(new DoubleWritable(myagg.mins[i]));
+                } else if (MAX.equals(stat)) {
+                    ret.add(new DoubleWritable(myagg.maxs[i]));
+                } else {
+                    ret.add(new DoubleWritable((myagg.sums[i] + myagg.comps[i]) / count));
+                }
+            }
+            return ret;
+        }
+    }
+
+}
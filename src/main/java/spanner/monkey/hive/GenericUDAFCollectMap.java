@@ -4,6 +4,7 @@ package spanner.monkey.hive;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
@@ -45,11 +46,31 @@ public class GenericUDAFCollectMap extends AbstractGenericUDAFResolver {
         private PrimitiveObjectInspector keyOI;
         private ObjectInspector valueOI;
         private ObjectInspectorConverters.Converter valueConv;
+        // OI of the copies kept in the buffer, used to estimate their size
+        private ObjectInspector standardValueOI;
 
         private StandardMapObjectInspector map;
 
         private StandardMapObjectInspector internalMergeOI;
 
+        private transient AggregationBufferMetrics metrics;
+
+        private AggregationBufferMetrics getMetrics() {
+            if (metrics == null) {
+                metrics = new AggregationBufferMetrics("collect_map");
+            }
+            return metrics;
+        }
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            getMetrics().configure(mapredContext);
+        }
+
+        @Override
+        public void close() {
+            getMetrics().close();
+        }
 
         @Override
         public ObjectInspector init(Mode m, ObjectInspector[] parameters)
@@ -61,6 +82,7 @@ public class GenericUDAFCollectMap extends AbstractGenericUDAFResolver {
                 keyOI = (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(parameters[0]);
                 valueOI = ObjectInspectorUtils.getStandardObjectInspector(parameters[1]);
                 valueConv = ObjectInspectorConverters.getConverter(parameters[1], valueOI);
+                standardValueOI = valueOI;
 
                 return ObjectInspectorFactory.getStandardMapObjectInspector(
                         (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(keyOI),
@@ -72,6 +94,7 @@ public class GenericUDAFCollectMap extends AbstractGenericUDAFResolver {
 
                 keyOI = (PrimitiveObjectInspector) internalMergeOI.getMapKeyObjectInspector();
                 valueOI = internalMergeOI.getMapValueObjectInspector();
+                standardValueOI = ObjectInspectorUtils.getStandardObjectInspector(valueOI);
 
                 return ObjectInspectorFactory.getStandardMapObjectInspector(
                         ObjectInspectorUtils.getStandardObjectInspector(keyOI),
@@ -80,13 +103,16 @@ public class GenericUDAFCollectMap extends AbstractGenericUDAFResolver {
             }
         }
 
-        static class MkMapAggregationBuffer implements AggregationBuffer {
+        @AggregationType(estimable = true)
+        static class MkMapAggregationBuffer extends EstimableAggregationBuffer {
             Map<Object, Object> container;
         }
 
         @Override
         public void reset(AggregationBuffer agg) throws HiveException {
-            ((MkMapAggregationBuffer) agg).container = new HashMap<Object, Object>();
+            MkMapAggregationBuffer myagg = (MkMapAggregationBuffer) agg;
+            myagg.container = new HashMap<Object, Object>();
+            myagg.resetBytes();
         }
 
         @Override
@@ -111,6 +137,7 @@ public class GenericUDAFCollectMap extends AbstractGenericUDAFResolver {
 
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            getMetrics().record((MkMapAggregationBuffer) agg);
             return terminate(agg);
         }
 
@@ -136,7 +163,13 @@ public class GenericUDAFCollectMap extends AbstractGenericUDAFResolver {
             Object kCopy = ObjectInspectorUtils.copyToStandardObject(key, this.keyOI);
             Object vCopy = ObjectInspectorUtils.copyToStandardObject(value, this.valueOI);
 
-            myagg.container.put(kCopy, vCopy);
+            Object old = myagg.container.put(kCopy, vCopy);
+            if (old == null) {
+                myagg.addBytes(EstimableAggregationBuffer.sizeOfEntry(kCopy, keyOI, vCopy, standardValueOI));
+            } else {
+                myagg.addBytes(EstimableAggregationBuffer.sizeOf(vCopy, standardValueOI)
+                        - EstimableAggregationBuffer.sizeOf(old, standardValueOI));
+            }
         }
     }
 
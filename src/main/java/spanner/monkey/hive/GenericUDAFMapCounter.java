@@ -4,32 +4,65 @@ package spanner.monkey.hive;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.io.ByteWritable;
+import org.apache.hadoop.hive.serde2.io.ShortWritable;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.IntWritable;
-
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import spanner.monkey.hive.counter.BytesKeyCounter;
+import spanner.monkey.hive.counter.LongKeyCounter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Description(name = "map_counter",
         value = "_FUNC_(x1[, x2, x3 ...]) - Count occurrence for each input value and " +
-                "return a Map<input, IntCount> .")
+                "return a Map<input, IntCount> .",
+        extended = "Use map_long_counter to get Map<input, BigintCount> when counts may exceed the int range.")
 public class GenericUDAFMapCounter extends AbstractGenericUDAFResolver {
     static final Log LOG = LogFactory.getLog(GenericUDAFMapCounter.class.getName());
 
     public GenericUDAFMapCounter() {
     }
 
+    /**
+     * Whether the result map holds bigint counts instead of int counts.
+     */
+    protected boolean isLongCount() {
+        return false;
+    }
+
     @Override
     public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
             throws SemanticException {
 
+        if (parameters.length < 1) {
+            throw new UDFArgumentTypeException(0, "At least one argument is expected.");
+        }
 
         for (int i = 0; i < parameters.length; i++) {
             if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
@@ -40,56 +73,120 @@ public class GenericUDAFMapCounter extends AbstractGenericUDAFResolver {
             }
         }
 
-        return new GenericUDAFMapCounterEvaluator();
+        // the specialized counters need every argument to share the key type
+        PrimitiveCategory category = ((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory();
+        for (int i = 1; i < parameters.length; i++) {
+            if (((PrimitiveTypeInfo) parameters[i]).getPrimitiveCategory() != category) {
+                return new GenericUDAFMapCounterEvaluator(isLongCount());
+            }
+        }
+
+        switch (category) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                return new GenericUDAFLongMapCounterEvaluator(isLongCount());
+            case STRING:
+                return new GenericUDAFStringMapCounterEvaluator(isLongCount());
+            default:
+                return new GenericUDAFMapCounterEvaluator(isLongCount());
+        }
     }
 
     public static class GenericUDAFMapCounterEvaluator extends GenericUDAFEvaluator {
 
+        // emit Map<Primitive, LongWritable> instead of Map<Primitive, IntWritable>
+        protected boolean longCount;
+
         // input
-        private PrimitiveObjectInspector inputOI;
+        protected PrimitiveObjectInspector inputOI;
+        protected PrimitiveObjectInspector keyOI;
+
+        // output Map<Primitive, IntWritable> or Map<Primitive, LongWritable>
+        protected StandardMapObjectInspector mc;
 
-        // output Map<Primitive, IntWritable>
-        private StandardMapObjectInspector mc;
+        // partial result: struct<keys:array<Primitive>, counts:binary>,
+        // keys sorted and counts as vlongs in key order
+        private StructObjectInspector internalMergeOI;
+        private StructField keysField;
+        private StructField countsField;
+        private ListObjectInspector keysOI;
+        private BinaryObjectInspector countsOI;
 
-        private StandardMapObjectInspector internalMergeOI;
+        private transient AggregationBufferMetrics metrics;
 
+        public GenericUDAFMapCounterEvaluator() {
+            this(false);
+        }
+
+        public GenericUDAFMapCounterEvaluator(boolean longCount) {
+            this.longCount = longCount;
+        }
+
+        protected AggregationBufferMetrics getMetrics() {
+            if (metrics == null) {
+                metrics = new AggregationBufferMetrics("map_counter");
+            }
+            return metrics;
+        }
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            getMetrics().configure(mapredContext);
+        }
+
+        @Override
+        public void close() {
+            getMetrics().close();
+        }
 
         @Override
         public ObjectInspector init(Mode m, ObjectInspector[] parameters)
                 throws HiveException {
             super.init(m, parameters);
 
-            // init output object inspectors
-
-            if (!(parameters[0] instanceof StandardMapObjectInspector)) {
-                //inputOI = (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(parameters[0]);
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
                 inputOI = (PrimitiveObjectInspector) parameters[0];
-
-                mc = ObjectInspectorFactory.getStandardMapObjectInspector(
-                        (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputOI),
-                        PrimitiveObjectInspectorFactory.writableIntObjectInspector);
-                return mc;
-
             } else {
                 // param[0] is partial result
-                internalMergeOI = (StandardMapObjectInspector) parameters[0];
-                inputOI = (PrimitiveObjectInspector) internalMergeOI.getMapKeyObjectInspector();
-
-                mc = ObjectInspectorFactory.getStandardMapObjectInspector(
-                        (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputOI),
-                        PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+                internalMergeOI = (StructObjectInspector) parameters[0];
+                keysField = internalMergeOI.getStructFieldRef("keys");
+                countsField = internalMergeOI.getStructFieldRef("counts");
+                keysOI = (ListObjectInspector) keysField.getFieldObjectInspector();
+                countsOI = (BinaryObjectInspector) countsField.getFieldObjectInspector();
+                inputOI = (PrimitiveObjectInspector) keysOI.getListElementObjectInspector();
+            }
 
-                return mc;
+            keyOI = (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(
+                    inputOI, ObjectInspectorCopyOption.WRITABLE);
+
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                ArrayList<String> fieldNames = new ArrayList<String>();
+                ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+                fieldNames.add("keys");
+                fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(keyOI));
+                fieldNames.add("counts");
+                fieldOIs.add(PrimitiveObjectInspectorFactory.writableBinaryObjectInspector);
+                return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
             }
+
+            mc = ObjectInspectorFactory.getStandardMapObjectInspector(keyOI,
+                    longCount ? PrimitiveObjectInspectorFactory.writableLongObjectInspector
+                            : PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+            return mc;
         }
 
-        static class MkMapAggregationBuffer implements AggregationBuffer {
-            Map<Object, IntWritable> container;
+        @AggregationType(estimable = true)
+        static class MkMapAggregationBuffer extends EstimableAggregationBuffer {
+            Map<Object, LongWritable> container;
         }
 
         @Override
         public void reset(AggregationBuffer agg) throws HiveException {
-            ((MkMapAggregationBuffer) agg).container = new HashMap<Object, IntWritable>();
+            MkMapAggregationBuffer myagg = (MkMapAggregationBuffer) agg;
+            myagg.container = new HashMap<Object, LongWritable>();
+            myagg.resetBytes();
         }
 
         @Override
@@ -105,46 +202,240 @@ public class GenericUDAFMapCounter extends AbstractGenericUDAFResolver {
 
             for (Object p : parameters) {
                 if (p != null) {
-                    MkMapAggregationBuffer myagg = (MkMapAggregationBuffer) agg;
-                    countUp(inputOI.getPrimitiveWritableObject(p), 1, myagg);
+                    countUp(agg, p, inputOI, 1);
                 }
             }
         }
 
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
-            return terminate(agg);
+            MkMapAggregationBuffer myagg = (MkMapAggregationBuffer) agg;
+            getMetrics().record(myagg);
+
+            List<Object> keys = new ArrayList<Object>(myagg.container.keySet());
+            Collections.sort(keys, new Comparator<Object>() {
+                @Override
+                public int compare(Object o1, Object o2) {
+                    return ObjectInspectorUtils.compare(o1, keyOI, o2, keyOI);
+                }
+            });
+
+            DataOutputBuffer counts = new DataOutputBuffer();
+            for (Object key : keys) {
+                writeCount(counts, myagg.container.get(key).get());
+            }
+            return partialResult(keys, counts);
         }
 
         @Override
         public void merge(AggregationBuffer agg, Object partial)
                 throws HiveException {
-            MkMapAggregationBuffer myagg = (MkMapAggregationBuffer) agg;
+            if (partial == null) {
+                return;
+            }
+
+            Object keys = internalMergeOI.getStructFieldData(partial, keysField);
+            BytesWritable counts = countsOI.getPrimitiveWritableObject(
+                    internalMergeOI.getStructFieldData(partial, countsField));
 
-            HashMap<Object, IntWritable> partialResult = (HashMap<Object, IntWritable>) internalMergeOI.getMap(partial);
-            for (Map.Entry<Object, IntWritable> i : partialResult.entrySet()) {
-                countUp(i.getKey(), i.getValue().get(), myagg);
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(counts.getBytes(), counts.getLength());
+            try {
+                int n = keysOI.getListLength(keys);
+                for (int i = 0; i < n; i++) {
+                    countUp(agg, keysOI.getListElement(keys, i), inputOI, WritableUtils.readVLong(in));
+                }
+            } catch (IOException e) {
+                throw new HiveException("Corrupted map_counter partial result", e);
             }
         }
 
         @Override
         public Object terminate(AggregationBuffer agg) throws HiveException {
             MkMapAggregationBuffer myagg = (MkMapAggregationBuffer) agg;
-            HashMap<Object, IntWritable> ret = new HashMap<Object, IntWritable>();
-            ret.putAll(myagg.container);
+            HashMap<Object, Object> ret = new HashMap<Object, Object>(myagg.container.size() * 2);
+            for (Map.Entry<Object, LongWritable> e : myagg.container.entrySet()) {
+                ret.put(e.getKey(), countWritable(e.getValue().get()));
+            }
             return ret;
         }
 
-        private void countUp(Object v, int count, MkMapAggregationBuffer myagg) {
-            Object vCopy = ObjectInspectorUtils.copyToStandardObject(v, this.mc.getMapKeyObjectInspector());
+        protected void countUp(AggregationBuffer agg, Object v, PrimitiveObjectInspector oi, long count) {
+            MkMapAggregationBuffer myagg = (MkMapAggregationBuffer) agg;
+            Object vCopy = ObjectInspectorUtils.copyToStandardObject(v, oi, ObjectInspectorCopyOption.WRITABLE);
 
-            if (myagg.container.containsKey(vCopy)) {
-                IntWritable c = myagg.container.get(vCopy);
+            LongWritable c = myagg.container.get(vCopy);
+            if (c != null) {
                 c.set(c.get() + count);
             } else {
-                myagg.container.put(vCopy, new IntWritable(count));
+                c = new LongWritable(count);
+                myagg.container.put(vCopy, c);
+                myagg.addBytes(EstimableAggregationBuffer.sizeOfEntry(vCopy, keyOI,
+                        c, PrimitiveObjectInspectorFactory.writableLongObjectInspector));
+            }
+        }
+
+        protected Object countWritable(long count) {
+            return longCount ? new LongWritable(count) : new IntWritable((int) count);
+        }
+
+        protected static void writeCount(DataOutputBuffer counts, long count) throws HiveException {
+            try {
+                WritableUtils.writeVLong(counts, count);
+            } catch (IOException e) {
+                throw new HiveException(e);
+            }
+        }
+
+        protected static Object partialResult(List<Object> keys, DataOutputBuffer counts) {
+            BytesWritable bytes = new BytesWritable();
+            bytes.set(counts.getData(), 0, counts.getLength());
+            return new Object[]{keys, bytes};
+        }
+    }
+
+    /**
+     * Counts BYTE/SHORT/INT/LONG keys in an open-addressing long table.
+     */
+    public static class GenericUDAFLongMapCounterEvaluator extends GenericUDAFMapCounterEvaluator {
+
+        public GenericUDAFLongMapCounterEvaluator() {
+            this(false);
+        }
+
+        public GenericUDAFLongMapCounterEvaluator(boolean longCount) {
+            super(longCount);
+        }
+
+        @AggregationType(estimable = true)
+        static class LongCounterAggregationBuffer extends EstimableAggregationBuffer {
+            LongKeyCounter counter = new LongKeyCounter();
+
+            @Override
+            public long getEstimatedBytes() {
+                return counter.estimateBytes();
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            ((LongCounterAggregationBuffer) agg).counter.clear();
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new LongCounterAggregationBuffer();
+        }
+
+        @Override
+        protected void countUp(AggregationBuffer agg, Object v, PrimitiveObjectInspector oi, long count) {
+            ((LongCounterAggregationBuffer) agg).counter.add(PrimitiveObjectInspectorUtils.getLong(v, oi), count);
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            LongKeyCounter counter = ((LongCounterAggregationBuffer) agg).counter;
+            PrimitiveCategory category = inputOI.getPrimitiveCategory();
+            getMetrics().record((LongCounterAggregationBuffer) agg);
+
+            List<Object> keys = new ArrayList<Object>(counter.size());
+            DataOutputBuffer counts = new DataOutputBuffer();
+            for (int e : counter.sortedEntries()) {
+                keys.add(toKeyWritable(category, counter.getKey(e)));
+                writeCount(counts, counter.getCount(e));
+            }
+            return partialResult(keys, counts);
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            LongKeyCounter counter = ((LongCounterAggregationBuffer) agg).counter;
+            PrimitiveCategory category = inputOI.getPrimitiveCategory();
+
+            HashMap<Object, Object> ret = new HashMap<Object, Object>(counter.size() * 2);
+            for (int e = 0; e < counter.size(); e++) {
+                ret.put(toKeyWritable(category, counter.getKey(e)), countWritable(counter.getCount(e)));
+            }
+            return ret;
+        }
+
+        private static Object toKeyWritable(PrimitiveCategory category, long key) {
+            switch (category) {
+                case BYTE:
+                    return new ByteWritable((byte) key);
+                case SHORT:
+                    return new ShortWritable((short) key);
+                case INT:
+                    return new IntWritable((int) key);
+                default:
+                    return new LongWritable(key);
+            }
+        }
+    }
+
+    /**
+     * Counts STRING keys by their UTF-8 bytes in an open-addressing table.
+     */
+    public static class GenericUDAFStringMapCounterEvaluator extends GenericUDAFMapCounterEvaluator {
+
+        public GenericUDAFStringMapCounterEvaluator() {
+            this(false);
+        }
+
+        public GenericUDAFStringMapCounterEvaluator(boolean longCount) {
+            super(longCount);
+        }
+
+        @AggregationType(estimable = true)
+        static class BytesCounterAggregationBuffer extends EstimableAggregationBuffer {
+            BytesKeyCounter counter = new BytesKeyCounter();
+
+            @Override
+            public long getEstimatedBytes() {
+                return counter.estimateBytes();
             }
         }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            ((BytesCounterAggregationBuffer) agg).counter.clear();
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new BytesCounterAggregationBuffer();
+        }
+
+        @Override
+        protected void countUp(AggregationBuffer agg, Object v, PrimitiveObjectInspector oi, long count) {
+            Text key = ((StringObjectInspector) oi).getPrimitiveWritableObject(v);
+            ((BytesCounterAggregationBuffer) agg).counter.add(key, count);
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            BytesKeyCounter counter = ((BytesCounterAggregationBuffer) agg).counter;
+            getMetrics().record((BytesCounterAggregationBuffer) agg);
+
+            List<Object> keys = new ArrayList<Object>(counter.size());
+            DataOutputBuffer counts = new DataOutputBuffer();
+            for (int e : counter.sortedEntries()) {
+                keys.add(counter.getKey(e));
+                writeCount(counts, counter.getCount(e));
+            }
+            return partialResult(keys, counts);
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            BytesKeyCounter counter = ((BytesCounterAggregationBuffer) agg).counter;
+
+            HashMap<Object, Object> ret = new HashMap<Object, Object>(counter.size() * 2);
+            for (int e = 0; e < counter.size(); e++) {
+                ret.put(counter.getKey(e), countWritable(counter.getCount(e)));
+            }
+            return ret;
+        }
     }
 
 }
@@ -0,0 +1,267 @@
+package spanner.monkey.hive;
+
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import spanner.monkey.hive.counter.SpaceSaving;
+
+import java.util.ArrayList;
+
+@Description(name = "map_counter_topk",
+        value = "_FUNC_(x, k[, capacity]) - Returns the approximate k most frequent values as " +
+                "Array<Struct<key, count, error>>, most frequent first.",
+        extended = "Backed by a Space-Saving summary of `capacity` counters (10 * k by default), " +
+                "so memory per group is fixed. The true count of a key lies in [count - error, count].")
+public class GenericUDAFMapCounterTopK extends AbstractGenericUDAFResolver {
+    static final Log LOG = LogFactory.getLog(GenericUDAFMapCounterTopK.class.getName());
+
+    public GenericUDAFMapCounterTopK() {
+    }
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+            throws SemanticException {
+
+        if (parameters.length < 2 || parameters.length > 3) {
+            throw new UDFArgumentTypeException(parameters.length - 1,
+                    "Two or three arguments are expected.");
+        }
+
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new UDFArgumentTypeException(i,
+                        "Only primitive type arguments are accepted but "
+                                + parameters[i].getTypeName() + " was passed as parameter " + (i + 1)
+                                + ".");
+            }
+        }
+
+        for (int i = 1; i < parameters.length; i++) {
+            switch (((PrimitiveTypeInfo) parameters[i]).getPrimitiveCategory()) {
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                    break;
+                default:
+                    throw new UDFArgumentTypeException(i,
+                            "Only integer constant is accepted but "
+                                    + parameters[i].getTypeName() + " was passed as parameter " + (i + 1)
+                                    + ".");
+            }
+        }
+
+        return new GenericUDAFMapCounterTopKEvaluator();
+    }
+
+    public static class GenericUDAFMapCounterTopKEvaluator extends GenericUDAFEvaluator {
+
+        // input
+        private PrimitiveObjectInspector inputOI;
+        private PrimitiveObjectInspector keyOI;
+
+        // For PARTIAL2 and FINAL: struct<k, capacity, keys, counts, errors>
+        private StructObjectInspector internalMergeOI;
+        private StructField kField;
+        private StructField capacityField;
+        private StructField keysField;
+        private StructField countsField;
+        private StructField errorsField;
+        private ListObjectInspector keysOI;
+        private ListObjectInspector countsOI;
+        private ListObjectInspector errorsOI;
+
+        // taken from the constant arguments on the map side and from the partials on the reduce side
+        private int k;
+        private int capacity;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+                throws HiveException {
+            super.init(m, parameters);
+
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                inputOI = (PrimitiveObjectInspector) parameters[0];
+                k = getConstantInt(parameters[1], 1);
+                capacity = (parameters.length > 2) ? getConstantInt(parameters[2], 2) : 10 * k;
+                if (capacity < k) {
+                    throw new UDFArgumentTypeException(2, "capacity should not be smaller than k.");
+                }
+            } else {
+                internalMergeOI = (StructObjectInspector) parameters[0];
+                kField = internalMergeOI.getStructFieldRef("k");
+                capacityField = internalMergeOI.getStructFieldRef("capacity");
+                keysField = internalMergeOI.getStructFieldRef("keys");
+                countsField = internalMergeOI.getStructFieldRef("counts");
+                errorsField = internalMergeOI.getStructFieldRef("errors");
+                keysOI = (ListObjectInspector) keysField.getFieldObjectInspector();
+                countsOI = (ListObjectInspector) countsField.getFieldObjectInspector();
+                errorsOI = (ListObjectInspector) errorsField.getFieldObjectInspector();
+                inputOI = (PrimitiveObjectInspector) keysOI.getListElementObjectInspector();
+            }
+
+            keyOI = (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(
+                    inputOI, ObjectInspectorCopyOption.WRITABLE);
+
+            ArrayList<String> fieldNames = new ArrayList<String>();
+            ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                fieldNames.add("k");
+                fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+                fieldNames.add("capacity");
+                fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+                fieldNames.add("keys");
+                fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(keyOI));
+                fieldNames.add("counts");
+                fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(
+                        PrimitiveObjectInspectorFactory.writableLongObjectInspector));
+                fieldNames.add("errors");
+                fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(
+                        PrimitiveObjectInspectorFactory.writableLongObjectInspector));
+                return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+            } else {
+                fieldNames.add("key");
+                fieldOIs.add(keyOI);
+                fieldNames.add("count");
+                fieldOIs.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+                fieldNames.add("error");
+                fieldOIs.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+                return ObjectInspectorFactory.getStandardListObjectInspector(
+                        ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs));
+            }
+        }
+
+        private int getConstantInt(ObjectInspector oi, int i) throws HiveException {
+            if (!(oi instanceof ConstantObjectInspector)) {
+                throw new UDFArgumentTypeException(i, "Parameter " + (i + 1) + " should be a constant.");
+            }
+            Object v = ((ConstantObjectInspector) oi).getWritableConstantValue();
+            int ret = (v == null) ? 0 : PrimitiveObjectInspectorUtils.getInt(v, (PrimitiveObjectInspector) oi);
+            if (ret <= 0) {
+                throw new UDFArgumentTypeException(i, "Parameter " + (i + 1) + " should be positive.");
+            }
+            return ret;
+        }
+
+        static class TopKAggregationBuffer implements AggregationBuffer {
+            SpaceSaving summary;
+        }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            // capacity is only known after the first partial on the reduce side
+            ((TopKAggregationBuffer) agg).summary = null;
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            TopKAggregationBuffer ret = new TopKAggregationBuffer();
+            reset(ret);
+            return ret;
+        }
+
+        private SpaceSaving getSummary(TopKAggregationBuffer myagg) {
+            if (myagg.summary == null) {
+                myagg.summary = new SpaceSaving(capacity);
+            }
+            return myagg.summary;
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters)
+                throws HiveException {
+            Object p = parameters[0];
+            if (p == null) {
+                return;
+            }
+
+            SpaceSaving summary = getSummary((TopKAggregationBuffer) agg);
+            // writable form is enough for the lookup, only new keys are copied
+            int e = summary.find(inputOI.getPrimitiveWritableObject(p));
+            if (e >= 0) {
+                summary.increment(e, 1);
+            } else {
+                summary.insert(ObjectInspectorUtils.copyToStandardObject(p, inputOI, ObjectInspectorCopyOption.WRITABLE), 1, 0);
+            }
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            SpaceSaving summary = getSummary((TopKAggregationBuffer) agg);
+
+            ArrayList<Object> keys = new ArrayList<Object>(summary.size());
+            ArrayList<Object> counts = new ArrayList<Object>(summary.size());
+            ArrayList<Object> errors = new ArrayList<Object>(summary.size());
+            for (int e = 0; e < summary.size(); e++) {
+                keys.add(summary.getKey(e));
+                counts.add(new LongWritable(summary.getCount(e)));
+                errors.add(new LongWritable(summary.getError(e)));
+            }
+            return new Object[]{new IntWritable(k), new IntWritable(capacity), keys, counts, errors};
+        }
+
+        @Override
+        public void merge(AggregationBuffer agg, Object partial)
+                throws HiveException {
+            if (partial == null) {
+                return;
+            }
+
+            k = ((IntObjectInspector) kField.getFieldObjectInspector()).get(
+                    internalMergeOI.getStructFieldData(partial, kField));
+            capacity = ((IntObjectInspector) capacityField.getFieldObjectInspector()).get(
+                    internalMergeOI.getStructFieldData(partial, capacityField));
+
+            Object keys = internalMergeOI.getStructFieldData(partial, keysField);
+            Object counts = internalMergeOI.getStructFieldData(partial, countsField);
+            Object errors = internalMergeOI.getStructFieldData(partial, errorsField);
+            PrimitiveObjectInspector countOI = (PrimitiveObjectInspector) countsOI.getListElementObjectInspector();
+            PrimitiveObjectInspector errorOI = (PrimitiveObjectInspector) errorsOI.getListElementObjectInspector();
+
+            int n = keysOI.getListLength(keys);
+            Object[] otherKeys = new Object[n];
+            long[] otherCounts = new long[n];
+            long[] otherErrors = new long[n];
+            for (int i = 0; i < n; i++) {
+                otherKeys[i] = ObjectInspectorUtils.copyToStandardObject(
+                        keysOI.getListElement(keys, i), inputOI, ObjectInspectorCopyOption.WRITABLE);
+                otherCounts[i] = PrimitiveObjectInspectorUtils.getLong(countsOI.getListElement(counts, i), countOI);
+                otherErrors[i] = PrimitiveObjectInspectorUtils.getLong(errorsOI.getListElement(errors, i), errorOI);
+            }
+
+            getSummary((TopKAggregationBuffer) agg).merge(otherKeys, otherCounts, otherErrors, n, n >= capacity);
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            SpaceSaving summary = getSummary((TopKAggregationBuffer) agg);
+
+            int[] order = summary.sortedEntries();
+            int n = Math.min(k, order.length);
+            ArrayList<Object> ret = new ArrayList<Object>(n);
+            for (int i = 0; i < n; i++) {
+                int e = order[i];
+                ret.add(new Object[]{summary.getKey(e),
+                        new LongWritable(summary.getCount(e)),
+                        new LongWritable(summary.getError(e))});
+            }
+            return ret;
+        }
+    }
+
+}
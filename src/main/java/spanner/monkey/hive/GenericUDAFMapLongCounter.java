@@ -0,0 +1,18 @@
+package spanner.monkey.hive;
+
+
+import org.apache.hadoop.hive.ql.exec.Description;
+
+@Description(name = "map_long_counter",
+        value = "_FUNC_(x1[, x2, x3 ...]) - Count occurrence for each input value and " +
+                "return a Map<input, BigintCount> .")
+public class GenericUDAFMapLongCounter extends GenericUDAFMapCounter {
+
+    public GenericUDAFMapLongCounter() {
+    }
+
+    @Override
+    protected boolean isLongCount() {
+        return true;
+    }
+}
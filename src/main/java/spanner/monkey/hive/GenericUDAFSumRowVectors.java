@@ -3,27 +3,44 @@ package spanner.monkey.hive;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.common.type.HiveDecimal;
 import org.apache.hadoop.hive.ql.exec.Description;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.io.HiveDecimalWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorConverters;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.HiveDecimalObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.DecimalTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.HiveDecimalUtils;
 import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.MapTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-@Description(name = "sum_row_vectors", value = "_FUNC_(Array) - Returns a new array which each element summed. ")
+@Description(name = "sum_row_vectors", value = "_FUNC_(Array) - Returns a new array which each element summed. ",
+        extended = "Integral arrays sum to Array<bigint>, float/double arrays to Array<double> and decimal arrays " +
+                "to Array<decimal>. A sparse vector Map<int, numeric> sums to Map<int, double>.")
 public class GenericUDAFSumRowVectors extends AbstractGenericUDAFResolver {
     static final Log LOG = LogFactory.getLog(GenericUDAFSumRowVectors.class.getName());
 
@@ -39,9 +56,13 @@ public class GenericUDAFSumRowVectors extends AbstractGenericUDAFResolver {
                     "Only one arguments are expected.");
         }
 
+        if (parameters[0].getCategory() == ObjectInspector.Category.MAP) {
+            return getSparseEvaluator((MapTypeInfo) parameters[0]);
+        }
+
         if (parameters[0].getCategory() != ObjectInspector.Category.LIST) {
             throw new UDFArgumentTypeException(0,
-                    "Only list argument are accepted but "
+                    "Only list or map argument are accepted but "
                             + parameters[0].getTypeName() + " was passed as parameter 1.");
         }
 
@@ -63,10 +84,10 @@ public class GenericUDAFSumRowVectors extends AbstractGenericUDAFResolver {
                 return new GenericUDAFSumLongArray();
             case FLOAT:
             case DOUBLE:
-            case STRING:
-                //return new GenericUDAFSumLongArray();
+                return new GenericUDAFSumDoubleArray();
             case DECIMAL:
-                //return new GenericUDAFSumBigDecimal();
+                return new GenericUDAFSumDecimalArray();
+            case STRING:
             case BOOLEAN:
                 throw new UDFArgumentTypeException(0, "Unsupported yet");
             default:
@@ -76,24 +97,75 @@ public class GenericUDAFSumRowVectors extends AbstractGenericUDAFResolver {
         }
     }
 
+    private GenericUDAFEvaluator getSparseEvaluator(MapTypeInfo mapTypeInfo) throws SemanticException {
+        TypeInfo keyTypeInfo = mapTypeInfo.getMapKeyTypeInfo();
+        TypeInfo valueTypeInfo = mapTypeInfo.getMapValueTypeInfo();
+
+        if (keyTypeInfo.getCategory() != ObjectInspector.Category.PRIMITIVE ||
+                valueTypeInfo.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0,
+                    "Only map<int, double> are accepted but "
+                            + mapTypeInfo.getTypeName() + " was passed as parameter 1.");
+        }
+
+        switch (((PrimitiveTypeInfo) keyTypeInfo).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+                break;
+            default:
+                throw new UDFArgumentTypeException(0,
+                        "Only integer index are accepted but "
+                                + mapTypeInfo.getTypeName() + " was passed as parameter 1.");
+        }
+
+        switch (((PrimitiveTypeInfo) valueTypeInfo).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+            case DECIMAL:
+                return new GenericUDAFSumSparseDoubleVector();
+            default:
+                throw new UDFArgumentTypeException(0,
+                        "Only numeric values are accepted but "
+                                + mapTypeInfo.getTypeName() + " was passed as parameter 1.");
+        }
+    }
+
+    /**
+     * Kahan-Babuska compensated summation: adds x to sums[i] and keeps the
+     * lost low-order part in comps[i]. The sum is sums[i] + comps[i].
+     */
+    static void compensatedAdd(double[] sums, double[] comps, int i, double x) {
+        double sum = sums[i];
+        double t = sum + x;
+        if (Math.abs(sum) >= Math.abs(x)) {
+            comps[i] += (sum - t) + x;
+        } else {
+            comps[i] += (x - t) + sum;
+        }
+        sums[i] = t;
+    }
+
     public static class GenericUDAFSumLongArray extends GenericUDAFEvaluator {
 
+        // input array<integral> or partial array<bigint>
+        private ListObjectInspector inputOI;
         private PrimitiveObjectInspector eleOI;
-        transient private ObjectInspectorConverters.Converter inputConverter;
+        // set when the elements are already bigint, which is always the case for partials
+        private LongObjectInspector longEleOI;
 
         @Override
         public ObjectInspector init(Mode m, ObjectInspector[] parameters)
                 throws HiveException {
             super.init(m, parameters);
 
-            eleOI = PrimitiveObjectInspectorFactory.javaLongObjectInspector;
-
-            inputConverter = ObjectInspectorConverters.getConverter(
-                    parameters[0],
-                    ObjectInspectorFactory.getStandardListObjectInspector(
-                            PrimitiveObjectInspectorFactory.javaLongObjectInspector
-                    )
-            );
+            inputOI = (ListObjectInspector) parameters[0];
+            eleOI = (PrimitiveObjectInspector) inputOI.getListElementObjectInspector();
+            longEleOI = (eleOI instanceof LongObjectInspector) ? (LongObjectInspector) eleOI : null;
 
             return ObjectInspectorFactory.getStandardListObjectInspector(
                     PrimitiveObjectInspectorFactory.writableLongObjectInspector
@@ -101,12 +173,19 @@ public class GenericUDAFSumRowVectors extends AbstractGenericUDAFResolver {
         }
 
         static class MkArrayAggregationBuffer implements AggregationBuffer {
-            List<LongWritable> container;
+            long[] container;
+            int size;
         }
 
         @Override
         public void reset(AggregationBuffer agg) throws HiveException {
-            ((MkArrayAggregationBuffer) agg).container = new ArrayList<LongWritable>();
+            MkArrayAggregationBuffer myagg = (MkArrayAggregationBuffer) agg;
+            if (myagg.container == null) {
+                myagg.container = new long[16];
+            } else {
+                Arrays.fill(myagg.container, 0, myagg.size, 0L);
+            }
+            myagg.size = 0;
         }
 
         @Override
@@ -131,36 +210,384 @@ public class GenericUDAFSumRowVectors extends AbstractGenericUDAFResolver {
         @Override
         public void merge(AggregationBuffer agg, Object partial)
                 throws HiveException {
-
-            List<Object> p = (List<Object>) inputConverter.convert(partial);
-            if (p != null) {
+            if (partial != null) {
                 MkArrayAggregationBuffer myagg = (MkArrayAggregationBuffer) agg;
-                sumArray(p, myagg);
+                sumArray(partial, myagg);
             }
         }
 
         @Override
         public Object terminate(AggregationBuffer agg) throws HiveException {
             MkArrayAggregationBuffer myagg = (MkArrayAggregationBuffer) agg;
-            ArrayList<LongWritable> ret = new ArrayList<LongWritable>();
-            ret.addAll(myagg.container);
+            ArrayList<LongWritable> ret = new ArrayList<LongWritable>(myagg.size);
+            for (int i = 0; i < myagg.size; i++) {
+                ret.add(new LongWritable(myagg.container[i]));
+            }
+            return ret;
+        }
+
+        private void sumArray(Object p, MkArrayAggregationBuffer myagg) {
+            int n = inputOI.getListLength(p);
+            if (n > myagg.container.length) {
+                myagg.container = Arrays.copyOf(myagg.container, Math.max(n, myagg.container.length * 2));
+            }
+            if (n > myagg.size) {
+                myagg.size = n;
+            }
+
+            long[] sums = myagg.container;
+            for (int i = 0; i < n; i++) {
+                Object e = inputOI.getListElement(p, i);
+                if (e == null) {
+                    continue;
+                }
+                sums[i] += (longEleOI != null) ? longEleOI.get(e) : PrimitiveObjectInspectorUtils.getLong(e, eleOI);
+            }
+        }
+    }
+
+    /**
+     * Sums FLOAT/DOUBLE vectors with compensated summation, so long vectors of
+     * small weights do not lose precision against a large running total.
+     */
+    public static class GenericUDAFSumDoubleArray extends GenericUDAFEvaluator {
+
+        // input array<float|double> or partial array<double>
+        private ListObjectInspector inputOI;
+        private PrimitiveObjectInspector eleOI;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+                throws HiveException {
+            super.init(m, parameters);
+
+            inputOI = (ListObjectInspector) parameters[0];
+            eleOI = (PrimitiveObjectInspector) inputOI.getListElementObjectInspector();
+
+            return ObjectInspectorFactory.getStandardListObjectInspector(
+                    PrimitiveObjectInspectorFactory.writableDoubleObjectInspector
+            );
+        }
+
+        static class DoubleArrayAggregationBuffer implements AggregationBuffer {
+            double[] sums;
+            double[] comps;
+            int size;
+        }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            DoubleArrayAggregationBuffer myagg = (DoubleArrayAggregationBuffer) agg;
+            if (myagg.sums == null) {
+                myagg.sums = new double[16];
+                myagg.comps = new double[16];
+            } else {
+                Arrays.fill(myagg.sums, 0, myagg.size, 0d);
+                Arrays.fill(myagg.comps, 0, myagg.size, 0d);
+            }
+            myagg.size = 0;
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            DoubleArrayAggregationBuffer ret = new DoubleArrayAggregationBuffer();
+            reset(ret);
+            return ret;
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters)
+                throws HiveException {
+            assert (parameters.length == 1);
+            merge(agg, parameters[0]);
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            return terminate(agg);
+        }
+
+        @Override
+        public void merge(AggregationBuffer agg, Object partial)
+                throws HiveException {
+            if (partial == null) {
+                return;
+            }
+
+            DoubleArrayAggregationBuffer myagg = (DoubleArrayAggregationBuffer) agg;
+            int n = inputOI.getListLength(partial);
+            if (n > myagg.sums.length) {
+                int capacity = Math.max(n, myagg.sums.length * 2);
+                myagg.sums = Arrays.copyOf(myagg.sums, capacity);
+                myagg.comps = Arrays.copyOf(myagg.comps, capacity);
+            }
+            if (n > myagg.size) {
+                myagg.size = n;
+            }
+
+            for (int i = 0; i < n; i++) {
+                Object e = inputOI.getListElement(partial, i);
+                if (e != null) {
+                    compensatedAdd(myagg.sums, myagg.comps, i, PrimitiveObjectInspectorUtils.getDouble(e, eleOI));
+                }
+            }
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            DoubleArrayAggregationBuffer myagg = (DoubleArrayAggregationBuffer) agg;
+            ArrayList<DoubleWritable> ret = new ArrayList<DoubleWritable>(myagg.size);
+            for (int i = 0; i < myagg.size; i++) {
+                ret.add(new DoubleWritable(myagg.sums[i] + myagg.comps[i]));
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Sums DECIMAL vectors exactly. Like sum(), the result gets 10 more digits of
+     * precision than the input, up to the maximum.
+     */
+    public static class GenericUDAFSumDecimalArray extends GenericUDAFEvaluator {
+
+        // input array<decimal> or partial array<decimal>
+        private ListObjectInspector inputOI;
+        private HiveDecimalObjectInspector eleOI;
+        private DecimalTypeInfo resultTypeInfo;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+                throws HiveException {
+            super.init(m, parameters);
+
+            inputOI = (ListObjectInspector) parameters[0];
+            eleOI = (HiveDecimalObjectInspector) inputOI.getListElementObjectInspector();
+
+            DecimalTypeInfo inputTypeInfo = (DecimalTypeInfo) eleOI.getTypeInfo();
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                int precision = Math.min(HiveDecimal.MAX_PRECISION, inputTypeInfo.precision() + 10);
+                resultTypeInfo = TypeInfoFactory.getDecimalTypeInfo(precision, inputTypeInfo.scale());
+            } else {
+                resultTypeInfo = inputTypeInfo;
+            }
+
+            return ObjectInspectorFactory.getStandardListObjectInspector(
+                    PrimitiveObjectInspectorFactory.getPrimitiveWritableObjectInspector(resultTypeInfo)
+            );
+        }
+
+        static class DecimalArrayAggregationBuffer implements AggregationBuffer {
+            // a null element is a sum that overflowed in a partial and stays null
+            List<BigDecimal> container;
+        }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            ((DecimalArrayAggregationBuffer) agg).container = new ArrayList<BigDecimal>();
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            DecimalArrayAggregationBuffer ret = new DecimalArrayAggregationBuffer();
+            reset(ret);
+            return ret;
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters)
+                throws HiveException {
+            assert (parameters.length == 1);
+            add(agg, parameters[0], false);
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            return terminate(agg);
+        }
+
+        @Override
+        public void merge(AggregationBuffer agg, Object partial)
+                throws HiveException {
+            add(agg, partial, true);
+        }
+
+        // null elements of a row are skipped, those of a partial are overflowed sums
+        private void add(AggregationBuffer agg, Object list, boolean partial) {
+            if (list == null) {
+                return;
+            }
+
+            List<BigDecimal> sums = ((DecimalArrayAggregationBuffer) agg).container;
+            int n = inputOI.getListLength(list);
+            while (sums.size() < n) {
+                sums.add(BigDecimal.ZERO);
+            }
+
+            for (int i = 0; i < n; i++) {
+                HiveDecimal v = eleOI.getPrimitiveJavaObject(inputOI.getListElement(list, i));
+                if (v == null) {
+                    if (partial) {
+                        sums.set(i, null);
+                    }
+                } else if (sums.get(i) != null) {
+                    sums.set(i, sums.get(i).add(v.bigDecimalValue()));
+                }
+            }
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            List<BigDecimal> sums = ((DecimalArrayAggregationBuffer) agg).container;
+            ArrayList<HiveDecimalWritable> ret = new ArrayList<HiveDecimalWritable>(sums.size());
+            for (BigDecimal sum : sums) {
+                // null when the sum no longer fits the result type
+                HiveDecimal v = (sum == null) ? null
+                        : HiveDecimalUtils.enforcePrecisionScale(HiveDecimal.create(sum), resultTypeInfo);
+                ret.add(v == null ? null : new HiveDecimalWritable(v));
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Sums sparse vectors given as map<index, value>. Only the indexes present
+     * in a row are touched, the result holds the indexes seen in any row.
+     */
+    public static class GenericUDAFSumSparseDoubleVector extends GenericUDAFEvaluator {
+
+        // input map<int, numeric> or partial map<int, double>
+        private MapObjectInspector inputOI;
+        private PrimitiveObjectInspector indexOI;
+        private PrimitiveObjectInspector valueOI;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+                throws HiveException {
+            super.init(m, parameters);
+
+            inputOI = (MapObjectInspector) parameters[0];
+            indexOI = (PrimitiveObjectInspector) inputOI.getMapKeyObjectInspector();
+            valueOI = (PrimitiveObjectInspector) inputOI.getMapValueObjectInspector();
+
+            return ObjectInspectorFactory.getStandardMapObjectInspector(
+                    PrimitiveObjectInspectorFactory.writableIntObjectInspector,
+                    PrimitiveObjectInspectorFactory.writableDoubleObjectInspector
+            );
+        }
+
+        /**
+         * Open-addressing index -> compensated sum table.
+         */
+        static class SparseVectorAggregationBuffer implements AggregationBuffer {
+            // entry index + 1 for each slot, 0 for an empty slot
+            int[] slots;
+            int mask;
+
+            int[] indexes;
+            double[] sums;
+            double[] comps;
+            int size;
+
+            void clear() {
+                slots = new int[32];
+                mask = slots.length - 1;
+                indexes = new int[16];
+                sums = new double[16];
+                comps = new double[16];
+                size = 0;
+            }
+
+            void add(int index, double v) {
+                int slot = hash(index) & mask;
+                for (int e = slots[slot] - 1; e >= 0; e = slots[slot] - 1) {
+                    if (indexes[e] == index) {
+                        compensatedAdd(sums, comps, e, v);
+                        return;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+
+                if (size == indexes.length) {
+                    indexes = Arrays.copyOf(indexes, size * 2);
+                    sums = Arrays.copyOf(sums, size * 2);
+                    comps = Arrays.copyOf(comps, size * 2);
+                }
+                indexes[size] = index;
+                sums[size] = v;
+                comps[size] = 0;
+                slots[slot] = ++size;
+
+                if (size * 2 > slots.length) {
+                    rehash(slots.length * 2);
+                }
+            }
+
+            private void rehash(int capacity) {
+                slots = new int[capacity];
+                mask = capacity - 1;
+                for (int e = 0; e < size; e++) {
+                    int slot = hash(indexes[e]) & mask;
+                    while (slots[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    slots[slot] = e + 1;
+                }
+            }
+
+            private static int hash(int h) {
+                h *= 0x9e3779b9;
+                return h ^ (h >>> 16);
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            ((SparseVectorAggregationBuffer) agg).clear();
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            SparseVectorAggregationBuffer ret = new SparseVectorAggregationBuffer();
+            reset(ret);
             return ret;
         }
 
-        private void sumArray(List<Object> p, MkArrayAggregationBuffer myagg) {
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters)
+                throws HiveException {
+            assert (parameters.length == 1);
+            merge(agg, parameters[0]);
+        }
 
-            int currentSize = myagg.container.size();
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            return terminate(agg);
+        }
 
-            for (int i = 0; i < p.size(); i++) {
-                long v = PrimitiveObjectInspectorUtils.getLong(p.get(i), eleOI);
-                if (i >= currentSize) {
-                    myagg.container.add(new LongWritable(v));
-                } else {
-                    LongWritable current = myagg.container.get(i);
-                    current.set(current.get() + v);
+        @Override
+        public void merge(AggregationBuffer agg, Object partial)
+                throws HiveException {
+            if (partial == null) {
+                return;
+            }
+
+            SparseVectorAggregationBuffer myagg = (SparseVectorAggregationBuffer) agg;
+            for (Map.Entry<?, ?> e : inputOI.getMap(partial).entrySet()) {
+                if (e.getKey() != null && e.getValue() != null) {
+                    myagg.add(PrimitiveObjectInspectorUtils.getInt(e.getKey(), indexOI),
+                            PrimitiveObjectInspectorUtils.getDouble(e.getValue(), valueOI));
                 }
+            }
+        }
 
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            SparseVectorAggregationBuffer myagg = (SparseVectorAggregationBuffer) agg;
+            HashMap<IntWritable, DoubleWritable> ret = new HashMap<IntWritable, DoubleWritable>(myagg.size * 2);
+            for (int e = 0; e < myagg.size; e++) {
+                ret.put(new IntWritable(myagg.indexes[e]), new DoubleWritable(myagg.sums[e] + myagg.comps[e]));
             }
+            return ret;
         }
     }
 
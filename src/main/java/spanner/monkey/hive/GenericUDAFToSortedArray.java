@@ -4,21 +4,44 @@ package spanner.monkey.hive;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BooleanObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
-
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.*;
 import java.util.*;
 
-@Description(name = "to_sorted_array", value = "_FUNC_(x, score) - Returns a list of sorted objects according to the scores. " +
-        "CAUTION will easily OOM on large datasets")
+@Description(name = "to_sorted_array",
+        value = "_FUNC_(x, score[, k[, 'ASC'|'DESC']]) - Returns a list of objects sorted according to the scores. " +
+                "When k (> 0) is given, only the first k objects are kept while aggregating. " +
+                "Without k, groups larger than " + GenericUDAFToSortedArray.CONF_MAX_BUFFER_BYTES +
+                " are sorted on local disk")
 public class GenericUDAFToSortedArray extends AbstractGenericUDAFResolver {
     static final Log LOG = LogFactory.getLog(GenericUDAFToSortedArray.class.getName());
 
+    // memory budget of one unbounded aggregation buffer on the reduce side, 0 or less to never spill
+    public static final String CONF_MAX_BUFFER_BYTES = "to_sorted_array.max.buffer.bytes";
+    public static final long DEFAULT_MAX_BUFFER_BYTES = 256L * 1024 * 1024;
+
     public GenericUDAFToSortedArray() {
     }
 
@@ -26,9 +49,9 @@ public class GenericUDAFToSortedArray extends AbstractGenericUDAFResolver {
     public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
             throws SemanticException {
 
-        if (parameters.length != 2) {
+        if (parameters.length < 2 || parameters.length > 4) {
             throw new UDFArgumentTypeException(parameters.length - 1,
-                    "Only two or three arguments are expected.");
+                    "Two to four arguments are expected.");
         }
 
         for (int i = 0; i < parameters.length; i++) {
@@ -39,96 +62,426 @@ public class GenericUDAFToSortedArray extends AbstractGenericUDAFResolver {
             }
         }
 
-        return new GenericUDAFMkSortedListEvaluator();
+        if (parameters.length > 2) {
+            switch (((PrimitiveTypeInfo) parameters[2]).getPrimitiveCategory()) {
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                    break;
+                default:
+                    throw new UDFArgumentTypeException(2,
+                            "Only integer k is accepted but "
+                                    + parameters[2].getTypeName() + " was passed as parameter 3.");
+            }
+        }
+
+        if (parameters.length > 3 &&
+                ((PrimitiveTypeInfo) parameters[3]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.STRING) {
+            throw new UDFArgumentTypeException(3,
+                    "Only 'ASC' or 'DESC' is accepted but "
+                            + parameters[3].getTypeName() + " was passed as parameter 4.");
+        }
+
+        switch (((PrimitiveTypeInfo) parameters[1]).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                return new GenericUDAFMkSortedListLongEvaluator();
+            case FLOAT:
+            case DOUBLE:
+                return new GenericUDAFMkSortedListDoubleEvaluator();
+            default:
+                return new GenericUDAFMkSortedListEvaluator();
+        }
     }
 
     public static class GenericUDAFMkSortedListEvaluator extends GenericUDAFEvaluator {
 
         // For PARTIAL1 and COMPLETE: ObjectInspectors for original data
+        // For PARTIAL2 and FINAL: ObjectInspectors for the lists inside the partial
         private PrimitiveObjectInspector inputOI;
         private PrimitiveObjectInspector inputScoreOI;
-        private ListObjectInspector inputScoreListOI;
-
-        // For COMPLETE and FINAL: ObjectInspectors for partial aggregations (list
-        // of objs)
-        private StandardListObjectInspector loi;
 
-        private StandardMapObjectInspector internalMergeOI;
+        // ObjectInspectors for the copies kept in the aggregation buffer
+        private PrimitiveObjectInspector valueOI;
+        private PrimitiveObjectInspector scoreOI;
+
+        // For PARTIAL2 and FINAL: struct<limit, desc, values, scores>,
+        // the two lists holding the pairs already sorted in the result order
+        private StructObjectInspector internalMergeOI;
+        private StructField limitField;
+        private StructField descField;
+        private StructField valuesField;
+        private StructField scoresField;
+        private ListObjectInspector valuesOI;
+        private ListObjectInspector scoresOI;
+        private boolean merging = false;
+
+        // k, 0 means unbounded. Taken from the constant arguments on the map side
+        // and from the partials on the reduce side.
+        private int limit = 0;
+        private boolean desc = false;
+
+        // unbounded buffers are only spilled where terminate() runs in the same task
+        private boolean spillable = false;
+        private long maxBufferBytes = DEFAULT_MAX_BUFFER_BYTES;
 
+        @Override
+        public void configure(MapredContext mapredContext) {
+            maxBufferBytes = mapredContext.getJobConf().getLong(CONF_MAX_BUFFER_BYTES, DEFAULT_MAX_BUFFER_BYTES);
+        }
 
         @Override
         public ObjectInspector init(Mode m, ObjectInspector[] parameters)
                 throws HiveException {
             super.init(m, parameters);
-            // init output object inspectors
-            // The output of a partial aggregation is a map
-            if (m == Mode.PARTIAL1) {
+            spillable = (m == Mode.COMPLETE || m == Mode.FINAL);
+            merging = (m == Mode.PARTIAL2 || m == Mode.FINAL);
+
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
                 inputOI = (PrimitiveObjectInspector) parameters[0];
                 inputScoreOI = (PrimitiveObjectInspector) parameters[1];
 
-                return ObjectInspectorFactory.getStandardMapObjectInspector(
-                        (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputOI),
-                        ObjectInspectorFactory.getStandardListObjectInspector(
-                                (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputScoreOI)
-                        )
-                );
+                if (parameters.length > 2) {
+                    limit = getConstantLimit(parameters[2]);
+                }
+                if (parameters.length > 3) {
+                    desc = getConstantOrder(parameters[3]);
+                }
+            } else {
+                internalMergeOI = (StructObjectInspector) parameters[0];
+                limitField = internalMergeOI.getStructFieldRef("limit");
+                descField = internalMergeOI.getStructFieldRef("desc");
+                valuesField = internalMergeOI.getStructFieldRef("values");
+                scoresField = internalMergeOI.getStructFieldRef("scores");
+                valuesOI = (ListObjectInspector) valuesField.getFieldObjectInspector();
+                scoresOI = (ListObjectInspector) scoresField.getFieldObjectInspector();
+
+                inputOI = (PrimitiveObjectInspector) valuesOI.getListElementObjectInspector();
+                inputScoreOI = (PrimitiveObjectInspector) scoresOI.getListElementObjectInspector();
             }
-            if (m == Mode.PARTIAL2) {
-                internalMergeOI = (StandardMapObjectInspector) parameters[0];
-
-                inputOI = (PrimitiveObjectInspector) internalMergeOI.getMapKeyObjectInspector();
-                inputScoreListOI = (ListObjectInspector) internalMergeOI.getMapValueObjectInspector();
-                inputScoreOI = (PrimitiveObjectInspector) inputScoreListOI.getListElementObjectInspector();
-
-                return ObjectInspectorFactory.getStandardMapObjectInspector(
-                        (PrimitiveObjectInspector) internalMergeOI.getMapKeyObjectInspector(),
-                        ObjectInspectorFactory.getStandardListObjectInspector(
-                                (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputScoreListOI.getListElementObjectInspector())
-                        )
-                );
 
+            valueOI = (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(
+                    inputOI, ObjectInspectorCopyOption.WRITABLE);
+            scoreOI = getScoreOI(inputScoreOI);
+
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                // The output of a partial aggregation is a struct of the settings and the sorted pairs
+                ArrayList<String> fieldNames = new ArrayList<String>();
+                ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+                fieldNames.add("limit");
+                fieldOIs.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+                fieldNames.add("desc");
+                fieldOIs.add(PrimitiveObjectInspectorFactory.writableBooleanObjectInspector);
+                fieldNames.add("values");
+                fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(valueOI));
+                fieldNames.add("scores");
+                fieldOIs.add(ObjectInspectorFactory.getStandardListObjectInspector(scoreOI));
+
+                return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
             } else {
                 // The output of a terminal aggregation is a list
+                return ObjectInspectorFactory.getStandardListObjectInspector(valueOI);
+            }
+        }
+
+        // ObjectInspector of the scores kept in the buffer and the partials
+        protected PrimitiveObjectInspector getScoreOI(PrimitiveObjectInspector inputScoreOI) {
+            return (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(
+                    inputScoreOI, ObjectInspectorCopyOption.WRITABLE);
+        }
+
+        protected PairBuffer newPairBuffer() {
+            return new ObjectPairBuffer(scoreOI);
+        }
+
+        private int getConstantLimit(ObjectInspector oi) throws HiveException {
+            if (!(oi instanceof ConstantObjectInspector)) {
+                throw new UDFArgumentTypeException(2, "k should be a constant.");
+            }
+            Object k = ((ConstantObjectInspector) oi).getWritableConstantValue();
+            return (k == null) ? 0 : Math.max(0, PrimitiveObjectInspectorUtils.getInt(k, (PrimitiveObjectInspector) oi));
+        }
 
-                if (!(parameters[0] instanceof StandardMapObjectInspector)) {
-                    // COMPLETE
-                    inputOI = (PrimitiveObjectInspector) ObjectInspectorUtils
-                            .getStandardObjectInspector(parameters[0]);
+        private boolean getConstantOrder(ObjectInspector oi) throws HiveException {
+            if (!(oi instanceof ConstantObjectInspector)) {
+                throw new UDFArgumentTypeException(3, "Sort order should be a constant.");
+            }
+            String order = PrimitiveObjectInspectorUtils.getString(
+                    ((ConstantObjectInspector) oi).getWritableConstantValue(), (PrimitiveObjectInspector) oi);
+            if ("DESC".equalsIgnoreCase(order)) {
+                return true;
+            } else if (order == null || "ASC".equalsIgnoreCase(order)) {
+                return false;
+            }
+            throw new UDFArgumentTypeException(3, "Sort order should be 'ASC' or 'DESC' but got '" + order + "'.");
+        }
 
-                    inputScoreOI = (PrimitiveObjectInspector) ObjectInspectorUtils
-                            .getStandardObjectInspector(parameters[1]);
+        /**
+         * (value, score) pairs kept in parallel arrays.
+         * Unbounded, the pairs are appended in arrival order, and merged partials
+         * are recorded as sorted runs. Bounded, the first k positions form a heap
+         * with the last ranked pair at position 0.
+         * Subclasses decide how the scores are stored and compared.
+         */
+        abstract static class PairBuffer implements AggregationBuffer {
+            static final int INITIAL_CAPACITY = 16;
+
+            Object[] values;
+            int size;
+            // ends of the sorted runs appended by merge()
+            int[] runEnds = new int[INITIAL_CAPACITY];
+            int runCount;
+            // estimated bytes held by the arrays
+            long bufferBytes;
+            // sorted runs written to local disk
+            List<SpilledRun> runs = new ArrayList<SpilledRun>();
+
+            void clear() {
+                values = new Object[INITIAL_CAPACITY];
+                size = 0;
+                runCount = 0;
+                bufferBytes = 0;
+                resizeScores(INITIAL_CAPACITY, false);
+            }
 
-                    loi = ObjectInspectorFactory.getStandardListObjectInspector(
-                            (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputOI));
-                    return loi;
+            void ensureCapacity(int capacity) {
+                if (capacity > values.length) {
+                    int newCapacity = Math.max(capacity, values.length * 2);
+                    values = Arrays.copyOf(values, newCapacity);
+                    resizeScores(newCapacity, true);
+                }
+            }
 
-                } else {
-                    // FINAL
-                    internalMergeOI = (StandardMapObjectInspector) parameters[0];
+            void add(Object value, Object score, PrimitiveObjectInspector oi) {
+                ensureCapacity(size + 1);
+                set(size++, value, score, oi);
+            }
 
-                    inputOI = (PrimitiveObjectInspector) internalMergeOI.getMapKeyObjectInspector();
-                    inputScoreListOI = (ListObjectInspector) internalMergeOI.getMapValueObjectInspector();
-                    inputScoreOI = (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputScoreListOI.getListElementObjectInspector());
+            void set(int i, Object value, Object score, PrimitiveObjectInspector oi) {
+                values[i] = value;
+                setScore(i, score, oi);
+            }
 
-                    loi = ObjectInspectorFactory.getStandardListObjectInspector(
-                            (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputOI));
-                    return loi;
+            void markRunEnd() {
+                int start = (runCount == 0) ? 0 : runEnds[runCount - 1];
+                if (size == start) {
+                    return;
+                }
+                if (runCount == runEnds.length) {
+                    runEnds = Arrays.copyOf(runEnds, runCount * 2);
                 }
+                runEnds[runCount++] = size;
+            }
+
+            void swap(int i, int j) {
+                Object v = values[i];
+                values[i] = values[j];
+                values[j] = v;
+                swapScores(i, j);
             }
+
+            abstract void resizeScores(int capacity, boolean keep);
+
+            abstract void setScore(int i, Object score, PrimitiveObjectInspector oi);
+
+            abstract void swapScores(int i, int j);
+
+            // natural order of the scores at i and j
+            abstract int compareScores(int i, int j);
+
+            // natural order of an incoming score against the one at i
+            abstract int compareScore(Object score, PrimitiveObjectInspector oi, int i);
+
+            abstract Object getScore(int i);
+
+            abstract long scoreBytes(int i);
+
+            abstract void writeScore(int i, DataOutput out) throws IOException;
+
+            abstract void readScore(int i, DataInput in) throws IOException;
         }
 
-        static class MkMapAggregationBuffer implements AggregationBuffer {
-            Map<Object, List<Object>> container;
+        static class ObjectPairBuffer extends PairBuffer {
+            private final PrimitiveObjectInspector scoreOI;
+            Object[] scores;
+
+            ObjectPairBuffer(PrimitiveObjectInspector scoreOI) {
+                this.scoreOI = scoreOI;
+            }
+
+            @Override
+            void resizeScores(int capacity, boolean keep) {
+                scores = keep ? Arrays.copyOf(scores, capacity) : new Object[capacity];
+            }
+
+            @Override
+            void setScore(int i, Object score, PrimitiveObjectInspector oi) {
+                scores[i] = ObjectInspectorUtils.copyToStandardObject(score, oi, ObjectInspectorCopyOption.WRITABLE);
+            }
+
+            @Override
+            void swapScores(int i, int j) {
+                Object s = scores[i];
+                scores[i] = scores[j];
+                scores[j] = s;
+            }
+
+            @Override
+            int compareScores(int i, int j) {
+                return ObjectInspectorUtils.compare(scores[i], scoreOI, scores[j], scoreOI);
+            }
+
+            @Override
+            int compareScore(Object score, PrimitiveObjectInspector oi, int i) {
+                return ObjectInspectorUtils.compare(score, oi, scores[i], scoreOI);
+            }
+
+            @Override
+            Object getScore(int i) {
+                return scores[i];
+            }
+
+            @Override
+            long scoreBytes(int i) {
+                return estimateBytes(scores[i]) + 8;
+            }
+
+            @Override
+            void writeScore(int i, DataOutput out) throws IOException {
+                ((Writable) scores[i]).write(out);
+            }
+
+            @Override
+            void readScore(int i, DataInput in) throws IOException {
+                scores[i] = readWritable(scoreOI, in);
+            }
+        }
+
+        static class LongPairBuffer extends PairBuffer {
+            long[] scores;
+
+            @Override
+            void resizeScores(int capacity, boolean keep) {
+                scores = keep ? Arrays.copyOf(scores, capacity) : new long[capacity];
+            }
+
+            @Override
+            void setScore(int i, Object score, PrimitiveObjectInspector oi) {
+                scores[i] = PrimitiveObjectInspectorUtils.getLong(score, oi);
+            }
+
+            @Override
+            void swapScores(int i, int j) {
+                long s = scores[i];
+                scores[i] = scores[j];
+                scores[j] = s;
+            }
+
+            @Override
+            int compareScores(int i, int j) {
+                return Long.compare(scores[i], scores[j]);
+            }
+
+            @Override
+            int compareScore(Object score, PrimitiveObjectInspector oi, int i) {
+                return Long.compare(PrimitiveObjectInspectorUtils.getLong(score, oi), scores[i]);
+            }
+
+            @Override
+            Object getScore(int i) {
+                return new LongWritable(scores[i]);
+            }
+
+            @Override
+            long scoreBytes(int i) {
+                return 8;
+            }
+
+            @Override
+            void writeScore(int i, DataOutput out) throws IOException {
+                out.writeLong(scores[i]);
+            }
+
+            @Override
+            void readScore(int i, DataInput in) throws IOException {
+                scores[i] = in.readLong();
+            }
+        }
+
+        static class DoublePairBuffer extends PairBuffer {
+            double[] scores;
+
+            @Override
+            void resizeScores(int capacity, boolean keep) {
+                scores = keep ? Arrays.copyOf(scores, capacity) : new double[capacity];
+            }
+
+            @Override
+            void setScore(int i, Object score, PrimitiveObjectInspector oi) {
+                scores[i] = PrimitiveObjectInspectorUtils.getDouble(score, oi);
+            }
+
+            @Override
+            void swapScores(int i, int j) {
+                double s = scores[i];
+                scores[i] = scores[j];
+                scores[j] = s;
+            }
+
+            @Override
+            int compareScores(int i, int j) {
+                return Double.compare(scores[i], scores[j]);
+            }
+
+            @Override
+            int compareScore(Object score, PrimitiveObjectInspector oi, int i) {
+                return Double.compare(PrimitiveObjectInspectorUtils.getDouble(score, oi), scores[i]);
+            }
+
+            @Override
+            Object getScore(int i) {
+                return new DoubleWritable(scores[i]);
+            }
+
+            @Override
+            long scoreBytes(int i) {
+                return 8;
+            }
+
+            @Override
+            void writeScore(int i, DataOutput out) throws IOException {
+                out.writeDouble(scores[i]);
+            }
+
+            @Override
+            void readScore(int i, DataInput in) throws IOException {
+                scores[i] = in.readDouble();
+            }
+        }
+
+        static class SpilledRun {
+            final File file;
+            final long size;
+
+            SpilledRun(File file, long size) {
+                this.file = file;
+                this.size = size;
+            }
         }
 
         @Override
         public void reset(AggregationBuffer agg) throws HiveException {
-            ((MkMapAggregationBuffer) agg).container = new HashMap<Object, List<Object>>();
+            PairBuffer myagg = (PairBuffer) agg;
+            myagg.clear();
+            deleteRuns(myagg);
         }
 
         @Override
         public AggregationBuffer getNewAggregationBuffer() throws HiveException {
-            MkMapAggregationBuffer ret = new MkMapAggregationBuffer();
+            PairBuffer ret = newPairBuffer();
             reset(ret);
             return ret;
         }
@@ -136,90 +489,362 @@ public class GenericUDAFToSortedArray extends AbstractGenericUDAFResolver {
         @Override
         public void iterate(AggregationBuffer agg, Object[] parameters)
                 throws HiveException {
-            assert (parameters.length == 2);
+            assert (parameters.length >= 2);
             Object p = parameters[0];
             Object s = parameters[1];
 
             if (p != null && s != null) {
-                MkMapAggregationBuffer myagg = (MkMapAggregationBuffer) agg;
-                putIntoMap(p, s, myagg);
+                PairBuffer myagg = (PairBuffer) agg;
+                putIntoBuffer(p, s, myagg);
             }
         }
 
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
-            MkMapAggregationBuffer myagg = (MkMapAggregationBuffer) agg;
-            HashMap<Object, List<Object>> ret = new HashMap<Object, List<Object>>();
-            ret.putAll(myagg.container);
-            return ret;
+            PairBuffer myagg = (PairBuffer) agg;
+
+            int[] order = sortedIndex(myagg);
+            ArrayList<Object> values = new ArrayList<Object>(order.length);
+            ArrayList<Object> scores = new ArrayList<Object>(order.length);
+            for (int i : order) {
+                values.add(myagg.values[i]);
+                scores.add(myagg.getScore(i));
+            }
+            return new Object[]{new IntWritable(limit), new BooleanWritable(desc), values, scores};
         }
 
         @Override
         public void merge(AggregationBuffer agg, Object partial)
                 throws HiveException {
-            MkMapAggregationBuffer myagg = (MkMapAggregationBuffer) agg;
+            if (partial == null) {
+                return;
+            }
+            PairBuffer myagg = (PairBuffer) agg;
+
+            limit = ((IntObjectInspector) limitField.getFieldObjectInspector()).get(
+                    internalMergeOI.getStructFieldData(partial, limitField));
+            desc = ((BooleanObjectInspector) descField.getFieldObjectInspector()).get(
+                    internalMergeOI.getStructFieldData(partial, descField));
+
+            Object values = internalMergeOI.getStructFieldData(partial, valuesField);
+            Object scores = internalMergeOI.getStructFieldData(partial, scoresField);
+            int n = valuesOI.getListLength(values);
+
+            if (limit > 0) {
+                // the partial is sorted, so nothing after the first rejected pair can make it
+                for (int i = 0; i < n; i++) {
+                    if (!putIntoHeap(valuesOI.getListElement(values, i), scoresOI.getListElement(scores, i), myagg)) {
+                        break;
+                    }
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    putIntoList(valuesOI.getListElement(values, i), scoresOI.getListElement(scores, i), myagg);
+                }
+                myagg.markRunEnd();
+            }
+        }
 
-            HashMap<Object, Object> partialResult = (HashMap<Object, Object>) internalMergeOI.getMap(partial);
-            for (Map.Entry<Object, Object> i : partialResult.entrySet()) {
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            PairBuffer myagg = (PairBuffer) agg;
 
-                List<Object> os = (List<Object>) inputScoreListOI.getList(i.getValue());
-                for (Object o : os) {
-                    putIntoMap(i.getKey(), o, myagg);
-                }
+            if (!myagg.runs.isEmpty()) {
+                spill(myagg);
+                return mergeRuns(myagg);
+            }
+
+            int[] order = sortedIndex(myagg);
+            ArrayList<Object> ret = new ArrayList<Object>(order.length);
+
+            for (int i : order) {
+                ret.add(myagg.values[i]);
             }
+            return ret;
         }
 
-        public class Tuple<X, Y> {
-            public final X x;
-            public final Y y;
+        // order of the pairs at i and j in the result
+        private int rank(PairBuffer buf, int i, int j) {
+            int c = buf.compareScores(i, j);
+            return desc ? -c : c;
+        }
 
-            public Tuple(X x, Y y) {
-                this.x = x;
-                this.y = y;
+        /**
+         * Stable natural merge sort of the buffer positions by rank.
+         * Merged partials are already sorted runs, so merging r of them costs
+         * O(n log r). Pairs from iterate() or the heap start as runs of one.
+         */
+        private int[] sortedIndex(PairBuffer buf) {
+            int n = buf.size;
+            int[] idx = new int[n];
+            int[] tmp = new int[n];
+            for (int i = 0; i < n; i++) {
+                idx[i] = i;
             }
+
+            // bounds[r] is the start of run r, bounds[runs] == n
+            int[] bounds;
+            int runs;
+            if (merging && limit == 0) {
+                bounds = new int[buf.runCount + 2];
+                runs = 0;
+                int start = 0;
+                for (int r = 0; r < buf.runCount; r++) {
+                    bounds[runs++] = start;
+                    start = buf.runEnds[r];
+                }
+                if (start < n) {
+                    // a partial still being appended when the buffer spilled
+                    bounds[runs++] = start;
+                }
+            } else {
+                bounds = new int[n + 1];
+                for (runs = 0; runs < n; runs++) {
+                    bounds[runs] = runs;
+                }
+            }
+            bounds[runs] = n;
+
+            while (runs > 1) {
+                int merged = 0;
+                for (int r = 0; r < runs; r += 2) {
+                    int lo = bounds[r];
+                    if (r + 1 < runs) {
+                        int mid = bounds[r + 1];
+                        int hi = bounds[r + 2];
+                        int a = lo, b = mid, k = lo;
+                        while (a < mid && b < hi) {
+                            tmp[k++] = (rank(buf, idx[b], idx[a]) < 0) ? idx[b++] : idx[a++];
+                        }
+                        while (a < mid) {
+                            tmp[k++] = idx[a++];
+                        }
+                        while (b < hi) {
+                            tmp[k++] = idx[b++];
+                        }
+                        System.arraycopy(tmp, lo, idx, lo, hi - lo);
+                    }
+                    bounds[merged++] = lo;
+                }
+                bounds[merged] = n;
+                runs = merged;
+            }
+            return idx;
         }
 
-        @Override
-        public Object terminate(AggregationBuffer agg) throws HiveException {
-            MkMapAggregationBuffer myagg = (MkMapAggregationBuffer) agg;
+        private void siftUp(PairBuffer buf, int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (rank(buf, i, parent) <= 0) {
+                    break;
+                }
+                buf.swap(i, parent);
+                i = parent;
+            }
+        }
 
-            ArrayList<Tuple<Object, Object>> entries = new ArrayList<Tuple<Object, Object>>();
-            for (Map.Entry<Object, List<Object>> i : myagg.container.entrySet()) {
-                for (Object o : i.getValue()) {
-                    entries.add(new Tuple<Object, Object>(i.getKey(), o));
+        private void siftDown(PairBuffer buf, int i) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= buf.size) {
+                    break;
+                }
+                if (child + 1 < buf.size && rank(buf, child + 1, child) > 0) {
+                    child++;
                 }
+                if (rank(buf, child, i) <= 0) {
+                    break;
+                }
+                buf.swap(i, child);
+                i = child;
             }
+        }
 
-            Collections.sort(entries, new Comparator() {
+        private Object mergeRuns(PairBuffer myagg) throws HiveException {
+            int n = myagg.runs.size();
+            // the current pair of run r sits at position r
+            final PairBuffer heads = newPairBuffer();
+            heads.clear();
+            heads.ensureCapacity(n);
+            heads.size = n;
+
+            DataInputStream[] ins = new DataInputStream[n];
+            long[] remaining = new long[n];
+            PriorityQueue<Integer> cursors = new PriorityQueue<Integer>(n, new Comparator<Integer>() {
                 @Override
-                public int compare(Object o1, Object o2) {
-                    Tuple<Object, Object> e1 = (Tuple<Object, Object>) o1;
-                    Tuple<Object, Object> e2 = (Tuple<Object, Object>) o2;
-
-                    return ObjectInspectorUtils.compare(e1.y, inputScoreOI, e2.y, inputScoreOI);
+                public int compare(Integer r1, Integer r2) {
+                    return rank(heads, r1, r2);
                 }
             });
+            ArrayList<Object> ret = new ArrayList<Object>();
+
+            try {
+                for (int r = 0; r < n; r++) {
+                    SpilledRun run = myagg.runs.get(r);
+                    ins[r] = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file)));
+                    remaining[r] = run.size;
+                    if (readHead(heads, r, ins[r], remaining)) {
+                        cursors.add(r);
+                    }
+                }
 
-            ArrayList<Object> ret = new ArrayList<Object>(entries.size());
-
-            for (Tuple<Object, Object> entry : entries) {
-                ret.add(entry.x);
+                while (!cursors.isEmpty()) {
+                    int r = cursors.poll();
+                    ret.add(heads.values[r]);
+                    if (readHead(heads, r, ins[r], remaining)) {
+                        cursors.add(r);
+                    }
+                }
+            } catch (IOException e) {
+                throw new HiveException(e);
+            } finally {
+                for (DataInputStream in : ins) {
+                    if (in == null) {
+                        continue;
+                    }
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        LOG.warn("Failed to close a spilled run", e);
+                    }
+                }
+                deleteRuns(myagg);
             }
             return ret;
         }
 
-        private void putIntoMap(Object p, Object s, MkMapAggregationBuffer myagg) {
-            Object pCopy = ObjectInspectorUtils.copyToStandardObject(p, this.inputOI);
-            Object sCopy = ObjectInspectorUtils.copyToStandardObject(s, this.inputScoreOI);
+        private boolean readHead(PairBuffer heads, int r, DataInput in, long[] remaining) throws IOException {
+            if (remaining[r] == 0) {
+                return false;
+            }
+            remaining[r]--;
+            heads.values[r] = readWritable(valueOI, in);
+            heads.readScore(r, in);
+            return true;
+        }
+
+        private void spill(PairBuffer myagg) throws HiveException {
+            int[] order = sortedIndex(myagg);
+
+            File file = null;
+            try {
+                file = File.createTempFile("to_sorted_array", ".run");
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                try {
+                    for (int i : order) {
+                        ((Writable) myagg.values[i]).write(out);
+                        myagg.writeScore(i, out);
+                    }
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                if (file != null) {
+                    file.delete();
+                }
+                throw new HiveException("Failed to spill to_sorted_array buffer", e);
+            }
+
+            LOG.info(String.format("Spilled %d pairs (about %d bytes) to %s",
+                    order.length, myagg.bufferBytes, file));
+            myagg.runs.add(new SpilledRun(file, order.length));
+            myagg.clear();
+        }
+
+        private static void deleteRuns(PairBuffer myagg) {
+            for (SpilledRun run : myagg.runs) {
+                if (!run.file.delete()) {
+                    LOG.warn("Failed to delete spilled run " + run.file);
+                }
+            }
+            myagg.runs.clear();
+        }
+
+        private static Object readWritable(PrimitiveObjectInspector oi, DataInput in) throws IOException {
+            Writable w = (Writable) ReflectionUtils.newInstance(oi.getPrimitiveWritableClass(), null);
+            w.readFields(in);
+            return w;
+        }
+
+        // rough heap footprint of a writable copy
+        private static long estimateBytes(Object o) {
+            if (o instanceof Text) {
+                return 40 + ((Text) o).getBytes().length;
+            } else if (o instanceof BytesWritable) {
+                return 40 + ((BytesWritable) o).getCapacity();
+            }
+            return 24;
+        }
 
-            if (myagg.container.containsKey(pCopy)) {
-                myagg.container.get(pCopy).add(sCopy);
+        private void putIntoBuffer(Object p, Object s, PairBuffer myagg) throws HiveException {
+            if (limit > 0) {
+                putIntoHeap(p, s, myagg);
             } else {
-                ArrayList sList = new ArrayList();
-                sList.add(sCopy);
-                myagg.container.put(pCopy, sList);
+                putIntoList(p, s, myagg);
             }
         }
+
+        // returns false when the pair ranks after everything kept
+        private boolean putIntoHeap(Object p, Object s, PairBuffer myagg) {
+            if (myagg.size < limit) {
+                myagg.add(ObjectInspectorUtils.copyToStandardObject(p, this.inputOI, ObjectInspectorCopyOption.WRITABLE),
+                        s, this.inputScoreOI);
+                siftUp(myagg, myagg.size - 1);
+                return true;
+            }
+
+            // only copy the pair when it beats the last ranked one
+            int c = myagg.compareScore(s, this.inputScoreOI, 0);
+            if ((desc ? -c : c) >= 0) {
+                return false;
+            }
+            myagg.set(0, ObjectInspectorUtils.copyToStandardObject(p, this.inputOI, ObjectInspectorCopyOption.WRITABLE),
+                    s, this.inputScoreOI);
+            siftDown(myagg, 0);
+            return true;
+        }
+
+        private void putIntoList(Object p, Object s, PairBuffer myagg) throws HiveException {
+            Object pCopy = ObjectInspectorUtils.copyToStandardObject(p, this.inputOI, ObjectInspectorCopyOption.WRITABLE);
+            myagg.add(pCopy, s, this.inputScoreOI);
+            myagg.bufferBytes += estimateBytes(pCopy) + 8 + myagg.scoreBytes(myagg.size - 1);
+
+            if (spillable && maxBufferBytes > 0 && myagg.bufferBytes > maxBufferBytes) {
+                spill(myagg);
+            }
+        }
+    }
+
+    /**
+     * Keeps BYTE/SHORT/INT/LONG scores unboxed in a long[].
+     */
+    public static class GenericUDAFMkSortedListLongEvaluator extends GenericUDAFMkSortedListEvaluator {
+
+        @Override
+        protected PrimitiveObjectInspector getScoreOI(PrimitiveObjectInspector inputScoreOI) {
+            return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+        }
+
+        @Override
+        protected PairBuffer newPairBuffer() {
+            return new LongPairBuffer();
+        }
+    }
+
+    /**
+     * Keeps FLOAT/DOUBLE scores unboxed in a double[].
+     */
+    public static class GenericUDAFMkSortedListDoubleEvaluator extends GenericUDAFMkSortedListEvaluator {
+
+        @Override
+        protected PrimitiveObjectInspector getScoreOI(PrimitiveObjectInspector inputScoreOI) {
+            return PrimitiveObjectInspectorFactory.writableDoubleObjectInspector;
+        }
+
+        @Override
+        protected PairBuffer newPairBuffer() {
+            return new DoublePairBuffer();
+        }
     }
 
 }
@@ -1,7 +1,7 @@
 package spanner.monkey.hive;
 
-import org.apache.hadoop.hive.conf.HiveConf;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
@@ -12,7 +12,9 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspe
 import org.jruby.RubyInstanceConfig;
 import org.jruby.embed.EmbedEvalUnit;
 import org.jruby.embed.ScriptingContainer;
+import spanner.monkey.hive.scripting.ScriptingContainerPool;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -30,7 +32,10 @@ public class GenericUDFCallJRuby extends GenericUDF {
     private ObjectInspectorConverters.Converter[] argsConverters;
     private PrimitiveObjectInspector[] argsOI;
 
-    private ScriptingContainer container;
+    // checked out of the pool on the first row, handed back in close()
+    private transient ScriptingContainer container;
+    // to correctly require ruby code
+    private String loadPath;
     private EmbedEvalUnit evalUnit = null;
 
     private ObjectInspector getCastedOI(PrimitiveObjectInspector poi) {
@@ -71,6 +76,11 @@ public class GenericUDFCallJRuby extends GenericUDF {
         return ret;
     }
 
+    @Override
+    public void configure(MapredContext mapredContext) {
+        loadPath = mapredContext.getJobConf().get(ScriptingContainerPool.CONF_LOAD_PATH);
+    }
+
     @Override
     public ObjectInspector initialize(ObjectInspector[] parameters) throws UDFArgumentException {
 
@@ -127,19 +137,26 @@ public class GenericUDFCallJRuby extends GenericUDF {
             );
         }
 
-        System.setProperty("jruby.compile.invokedynamic", "true");
-        this.container = new ScriptingContainer();
-        container.setCompileMode(RubyInstanceConfig.CompileMode.JIT);
-
-
-        // to correctly require ruby code
-        HiveConf conf = new HiveConf();
-        String loadPath = conf.get("jruby.load_path");
-        container.getLoadPaths().add(loadPath);
+        // parse a constant scriptlet up front, but only inside a task
+        if (parameters[argStart - 1] instanceof ConstantObjectInspector && MapredContext.get() != null) {
+            Object constant = ((ConstantObjectInspector) parameters[argStart - 1]).getWritableConstantValue();
+            if (constant != null) {
+                prepare(constant.toString());
+            }
+        }
 
         return retOI;
     }
 
+    private void prepare(String scriptlet) {
+        if (container == null) {
+            container = ScriptingContainerPool.acquire(
+                    (loadPath != null) ? loadPath : ScriptingContainerPool.getDefaultLoadPath(),
+                    RubyInstanceConfig.CompileMode.JIT, true, scriptlet);
+        }
+        evalUnit = ScriptingContainerPool.parse(container, scriptlet);
+    }
+
     @Override
     public Object evaluate(DeferredObject[] parameters) throws HiveException {
 
@@ -147,8 +164,7 @@ public class GenericUDFCallJRuby extends GenericUDF {
 
         if (evalUnit == null) {
             // only parse script at the first input
-            String scriptlet = scriptletOI.getPrimitiveJavaObject(parameters[argStart - 1].get());
-            evalUnit = container.parse(scriptlet);
+            prepare(scriptletOI.getPrimitiveJavaObject(parameters[argStart - 1].get()));
         }
 
         for (int i = argStart; i < parameters.length; i++) {
@@ -173,6 +189,15 @@ public class GenericUDFCallJRuby extends GenericUDF {
 
     }
 
+    @Override
+    public void close() throws IOException {
+        if (container != null) {
+            ScriptingContainerPool.release(container);
+            container = null;
+            evalUnit = null;
+        }
+    }
+
     @Override
     public String getDisplayString(String[] children) {
         return "call_jruby";
@@ -2,8 +2,8 @@ package spanner.monkey.hive;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.hive.conf.HiveConf;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
@@ -13,10 +13,10 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectIn
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.io.Text;
 import org.jruby.RubyInstanceConfig;
-import org.jruby.embed.AttributeName;
 import org.jruby.embed.ScriptingContainer;
-import org.jruby.util.KCode;
+import spanner.monkey.hive.scripting.ScriptingContainerPool;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -35,7 +35,10 @@ public class GenericUDFCallJRubyV2 extends GenericUDF {
     private PrimitiveObjectInspector[] argsOI;
     public static final String EVALUATE_METHOD = "exec";
 
-    private ScriptingContainer container;
+    // checked out of the pool on the first row, handed back in close()
+    private transient ScriptingContainer container;
+    // to correctly require ruby code
+    private String loadPath;
     private boolean first = true;
     private Object receiver;
     private Object[] args;
@@ -81,6 +84,11 @@ public class GenericUDFCallJRubyV2 extends GenericUDF {
         return ret;
     }
 
+    @Override
+    public void configure(MapredContext mapredContext) {
+        loadPath = mapredContext.getJobConf().get(ScriptingContainerPool.CONF_LOAD_PATH);
+    }
+
     @Override
     public ObjectInspector initialize(ObjectInspector[] parameters) throws UDFArgumentException {
 
@@ -136,20 +144,27 @@ public class GenericUDFCallJRubyV2 extends GenericUDF {
             );
         }
 
-        System.setProperty("jruby.compile.invokedynamic", "true");
-        this.container = new ScriptingContainer();
-        container.setKCode(KCode.UTF8);
-        container.setAttribute(AttributeName.SHARING_VARIABLES, false);
-
-        container.setCompileMode(RubyInstanceConfig.CompileMode.JIT);
-
-        HiveConf conf = new HiveConf();
-        String loadPath = conf.get("jruby.load_path");
-        container.getLoadPaths().add(loadPath);
+        // compile a constant scriptlet up front, but only inside a task
+        if (parameters[argStart - 1] instanceof ConstantObjectInspector && MapredContext.get() != null) {
+            Object constant = ((ConstantObjectInspector) parameters[argStart - 1]).getWritableConstantValue();
+            if (constant != null) {
+                prepare(constant.toString());
+            }
+        }
 
         return retOI;
     }
 
+    private void prepare(String scriptlet) {
+        if (container == null) {
+            container = ScriptingContainerPool.acquire(
+                    (loadPath != null) ? loadPath : ScriptingContainerPool.getDefaultLoadPath(),
+                    RubyInstanceConfig.CompileMode.JIT, false, scriptlet);
+        }
+        receiver = ScriptingContainerPool.runScriptlet(container, scriptlet);
+        first = false;
+    }
+
     @Override
     public Object evaluate(DeferredObject[] parameters) throws HiveException {
 
@@ -157,10 +172,7 @@ public class GenericUDFCallJRubyV2 extends GenericUDF {
 
         if (first) {
             // only parse script at the first input
-            String scriptlet = scriptletOI.getPrimitiveJavaObject(parameters[argStart - 1].get());
-            receiver = container.runScriptlet(scriptlet);
-            LOG.info("container.runScriptlet:\n" + scriptlet);
-            first = false;
+            prepare(scriptletOI.getPrimitiveJavaObject(parameters[argStart - 1].get()));
         }
 
         args = new Object[parameters.length - argStart];
@@ -185,6 +197,15 @@ public class GenericUDFCallJRubyV2 extends GenericUDF {
 
     }
 
+    @Override
+    public void close() throws IOException {
+        if (container != null) {
+            ScriptingContainerPool.release(container);
+            container = null;
+            first = true;
+        }
+    }
+
     @Override
     public String getDisplayString(String[] children) {
         return "call_jruby";
@@ -2,8 +2,8 @@ package spanner.monkey.hive;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.hive.conf.HiveConf;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
@@ -14,10 +14,10 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectIn
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.io.Text;
 import org.jruby.RubyInstanceConfig;
-import org.jruby.embed.AttributeName;
 import org.jruby.embed.ScriptingContainer;
-import org.jruby.util.KCode;
+import spanner.monkey.hive.scripting.ScriptingContainerPool;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -39,7 +39,10 @@ public class GenericUDFCallJRubyV3 extends GenericUDF {
     private PrimitiveObjectInspector[] argsOI;
     public static final String EVALUATE_METHOD = "exec";
 
-    private ScriptingContainer container;
+    // checked out of the pool on the first row, handed back in close()
+    private transient ScriptingContainer container;
+    // to correctly require ruby code
+    private String loadPath;
     private boolean first = true;
     private Object receiver;
     private Object[] args;
@@ -96,6 +99,11 @@ public class GenericUDFCallJRubyV3 extends GenericUDF {
         }
     }
 
+    @Override
+    public void configure(MapredContext mapredContext) {
+        loadPath = mapredContext.getJobConf().get(ScriptingContainerPool.CONF_LOAD_PATH);
+    }
+
     @Override
     public ObjectInspector initialize(ObjectInspector[] parameters) throws UDFArgumentException {
 
@@ -143,20 +151,30 @@ public class GenericUDFCallJRubyV3 extends GenericUDF {
             );
         }
 
-        System.setProperty("jruby.compile.invokedynamic", "true");
-        this.container = new ScriptingContainer();
-        container.setKCode(KCode.UTF8);
-        container.setAttribute(AttributeName.SHARING_VARIABLES, false);
-
-        container.setCompileMode(RubyInstanceConfig.CompileMode.JIT);
-
-        HiveConf conf = new HiveConf();
-        String loadPath = conf.get("jruby.load_path");
-        container.getLoadPaths().add(loadPath);
+        // compile a constant scriptlet up front, but only inside a task
+        if (parameters[1] instanceof ConstantObjectInspector && MapredContext.get() != null) {
+            Object constant = ((ConstantObjectInspector) parameters[1]).getWritableConstantValue();
+            if (constant instanceof List) {
+                constant = ((List) constant).isEmpty() ? null : ((List) constant).get(0);
+            }
+            if (constant != null) {
+                prepare(constant.toString());
+            }
+        }
 
         return retOI;
     }
 
+    private void prepare(String scriptlet) {
+        if (container == null) {
+            container = ScriptingContainerPool.acquire(
+                    (loadPath != null) ? loadPath : ScriptingContainerPool.getDefaultLoadPath(),
+                    RubyInstanceConfig.CompileMode.JIT, false, scriptlet);
+        }
+        receiver = ScriptingContainerPool.runScriptlet(container, scriptlet);
+        first = false;
+    }
+
     @Override
     public Object evaluate(DeferredObject[] parameters) throws HiveException {
 
@@ -164,15 +182,11 @@ public class GenericUDFCallJRubyV3 extends GenericUDF {
 
         // only parse script at the first input
         if (first) {
-            String scriptlet;
             if (fixedMethodName) {
-                scriptlet = ((StringObjectInspector) scriptletOI).getPrimitiveJavaObject(parameters[argStart - 1].get());
+                prepare(((StringObjectInspector) scriptletOI).getPrimitiveJavaObject(parameters[argStart - 1].get()));
             } else {
-                scriptlet = ((Text) ((ListObjectInspector) scriptletOI).getListElement(parameters[argStart - 1].get(), 0)).toString();
+                prepare(((Text) ((ListObjectInspector) scriptletOI).getListElement(parameters[argStart - 1].get(), 0)).toString());
             }
-            receiver = container.runScriptlet(scriptlet);
-            LOG.info("container.runScriptlet:\n" + scriptlet);
-            first = false;
         }
 
         String method;
@@ -204,6 +218,15 @@ public class GenericUDFCallJRubyV3 extends GenericUDF {
 
     }
 
+    @Override
+    public void close() throws IOException {
+        if (container != null) {
+            ScriptingContainerPool.release(container);
+            container = null;
+            first = true;
+        }
+    }
+
     @Override
     public String getDisplayString(String[] children) {
         return "call_jruby";
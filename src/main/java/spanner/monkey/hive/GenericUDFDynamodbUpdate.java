@@ -5,11 +5,9 @@ package spanner.monkey.hive;
  */
 
 import com.amazonaws.services.dynamodbv2.document.AttributeUpdate;
+import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
-import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
-import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
-import com.amazonaws.services.dynamodbv2.model.ReturnValue;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
@@ -32,7 +30,6 @@ import spanner.monkey.hive.dynamodb.UpdateHelper;
 import spanner.monkey.hive.scripting.RubyScriptingUtils;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -66,7 +63,7 @@ public class GenericUDFDynamodbUpdate extends GenericUDF
         }
 
         JobConf jobConf = mapredContext.getJobConf();
-        updateHelper = new UpdateHelper(jobConf);
+        updateHelper = new UpdateHelper(jobConf, mapredContext);
 
         LOG.warn(String.format("Gonna update Dynamodb's '%s' table", updateHelper.tableName));
 
@@ -146,25 +143,25 @@ public class GenericUDFDynamodbUpdate extends GenericUDF
             key = new PrimaryKey(hashKeyName, hashKeyOI.getPrimitiveJavaObject(parameters[0].get()));
         }
         next = 2;
-        UpdateItemSpec updateItemSpec = new UpdateItemSpec()
-                .withPrimaryKey(key)
-                .withReturnValues(ReturnValue.NONE)
-                .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
 
         if (attributeNameOIs == null) {
+            // full item write, batched with BatchWriteItem
+            Item item = new Item().withPrimaryKey(key);
             Object value = attributeValueConverters[0].convert(parameters[next].get());
             if (value instanceof Map) {
                 Map<Object, Object> map = (Map<Object, Object>) value;
-                List<AttributeUpdate> attributeUpdates = new ArrayList<>();
                 for (Map.Entry<Object, Object> a : map.entrySet()) {
-                    attributeUpdates.add(new AttributeUpdate((String) a.getKey()).put(a.getValue()));
+                    if (a.getValue() instanceof String && ((String) a.getValue()).isEmpty()) {
+                        // empty strings would fail the whole batch
+                        continue;
+                    }
+                    item.with((String) a.getKey(), a.getValue());
                 }
-
-                updateItemSpec.withAttributeUpdate(attributeUpdates);
             }
+
+            updateHelper.put(item);
         }
         else {
-
             ImmutableList.Builder<AttributeUpdate> builder = ImmutableList.<AttributeUpdate>builder();
 
             for (int i = 0; i < attributeNameOIs.length; i++) {
@@ -189,10 +186,9 @@ public class GenericUDFDynamodbUpdate extends GenericUDF
                 }
             }
 
-            updateItemSpec.withAttributeUpdate(builder.build());
+            updateHelper.update(key, builder.build());
         }
 
-        updateHelper.update(updateItemSpec);
         ret.set(1);
         return ret;
     }
@@ -200,6 +196,13 @@ public class GenericUDFDynamodbUpdate extends GenericUDF
     @Override
     public void close() throws IOException
     {
+        try {
+            updateHelper.close();
+        }
+        catch (HiveException e) {
+            // MapredContext.closeAll() only logs IOExceptions, which would lose the last writes silently
+            throw new RuntimeException(e);
+        }
         LOG.info(String.format("Consumed %f write capacities with %d item updated",
                 updateHelper.getConsumedCapacityCounter(),
                 updateHelper.getUpdateCounter()));
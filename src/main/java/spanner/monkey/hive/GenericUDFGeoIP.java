@@ -1,63 +1,58 @@
 package spanner.monkey.hive;
 
 import com.google.common.base.Strings;
-import com.maxmind.geoip2.DatabaseReader;
 import com.maxmind.geoip2.exception.GeoIp2Exception;
-import com.maxmind.geoip2.model.CityResponse;
-import com.maxmind.geoip2.record.Location;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import spanner.monkey.hive.geoip.CityLookup;
+import spanner.monkey.hive.geoip.CityProperty;
 
-import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.util.Arrays;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
 
 @Description(
         name = "geoip",
         value = "_FUNC_(ip,property,database) - GEO IP lookup\n" +
-                "possible properties: json,country,country_code,city,location,timezone,postal_code,subdivision,subdivision_code"
+                "possible properties: json,country,country_code,city,location,latitude,longitude," +
+                "timezone,postal_code,subdivision,subdivision_code",
+        extended = "database can be a local path, a file added with 'add file', or an HDFS path. " +
+                "Lookups are cached per IP, set geoip.cache.size to change the number of cached IPs (0 disables). " +
+                "Each cached IP takes a few hundred bytes of heap, json lookups are not cached."
 )
 public class GenericUDFGeoIP extends GenericUDF {
-    private String ipString = null;
-    private Long ipLong = null;
-    private String property;
     private String database;
-    transient private DatabaseReader reader;
+    transient private CityLookup lookup;
+    transient private Configuration conf;
+    // the reporter is only set on the first row, after configure()
+    transient private MapredContext mapredContext;
     transient StringBuilder sb = new StringBuilder();
 
-    private static final String JSON = "JSON";
-    private static final String COUNTRY = "COUNTRY";
-    private static final String COUNTRY_CODE = "COUNTRY_CODE";
-    private static final String CITY = "CITY";
-    private static final String LOCATION = "LOCATION";
-    private static final String TIMEZONE = "TIMEZONE";
-    private static final String POSTAL_CODE = "POSTAL_CODE";
-    private static final String SUBDIVISION = "SUBDIVISION";
-    private static final String SUBDIVISION_CODE = "SUBDIVISION_CODE";
-
-    private static final Set<String> COUNTRY_PROPERTIES =
-            new CopyOnWriteArraySet<String>(Arrays.asList(
-                    new String[]{COUNTRY, COUNTRY_CODE}));
-
-    private static final Set<String> CITY_PROPERTIES =
-            new CopyOnWriteArraySet<String>(Arrays.asList(
-                    new String[]{JSON, COUNTRY, COUNTRY_CODE,
-                            CITY, LOCATION, TIMEZONE, SUBDIVISION, SUBDIVISION_CODE}));
+    // compiled in initialize when the property argument is constant,
+    // otherwise recompiled whenever the property changes
+    transient private CityProperty[] properties;
+    transient private String lastProperty;
+    transient private boolean json;
 
     PrimitiveObjectInspector[] argumentOIs;
 
+    @Override
+    public void configure(MapredContext mapredContext) {
+        conf = mapredContext.getJobConf();
+        this.mapredContext = mapredContext;
+    }
+
     @Override
     public ObjectInspector initialize(ObjectInspector[] arguments)
             throws UDFArgumentException {
@@ -85,89 +80,65 @@ public class GenericUDFGeoIP extends GenericUDF {
             }
             argumentOIs[i] = (StringObjectInspector) arguments[i];
         }
-        return PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(
-                PrimitiveObjectInspector.PrimitiveCategory.STRING);
-    }
 
-    private String longToIp(long ip) {
-        StringBuilder sb = new StringBuilder(15);
-        for (int i = 0; i < 4; i++) {
-            sb.insert(0, Long.toString(ip & 0xff));
-
-            if (i < 3) {
-                sb.insert(0, '.');
+        properties = null;
+        lastProperty = null;
+        if (arguments[1] instanceof ConstantObjectInspector) {
+            Object property = ((ConstantObjectInspector) arguments[1]).getWritableConstantValue();
+            if (property != null && property.toString().length() > 0) {
+                lastProperty = property.toString();
+                properties = CityProperty.compile(lastProperty);
+                json = Arrays.asList(properties).contains(CityProperty.JSON);
             }
-            ip = ip >> 8;
         }
-        return sb.toString();
+
+        return PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(
+                PrimitiveObjectInspector.PrimitiveCategory.STRING);
     }
 
     @Override
     public Object evaluate(GenericUDF.DeferredObject[] arguments) throws HiveException {
-        if (argumentOIs[0] instanceof LongObjectInspector) {
-            this.ipLong = ((LongObjectInspector) argumentOIs[0]).get(arguments[0].get());
-        } else {
-            this.ipString = ((StringObjectInspector) argumentOIs[0]).getPrimitiveJavaObject(arguments[0].get());
+        Object ipKey = CityLookup.toIpKey(arguments[0].get(), argumentOIs[0]);
+        if (ipKey == null) {
+            return null;
         }
-        this.property = ((StringObjectInspector) argumentOIs[1]).getPrimitiveJavaObject(arguments[1].get());
 
-        if (Strings.isNullOrEmpty(this.property)) {
+        if (!(argumentOIs[1] instanceof ConstantObjectInspector)) {
+            String property = ((StringObjectInspector) argumentOIs[1]).getPrimitiveJavaObject(arguments[1].get());
+            if (Strings.isNullOrEmpty(property)) {
+                return null;
+            }
+            if (!property.equals(lastProperty)) {
+                lastProperty = property;
+                properties = CityProperty.compile(property);
+                json = Arrays.asList(properties).contains(CityProperty.JSON);
+            }
+        }
+        if (properties == null) {
             return null;
-        } else {
-            this.property = this.property.toUpperCase();
         }
 
-        if (reader == null) {
-            if (argumentOIs.length == 3) {
-                this.database = ((StringObjectInspector) argumentOIs[1]).getPrimitiveJavaObject(arguments[2].get());
-                File f = new File(database);
-                if (!f.exists()) {
-                    throw new HiveException(database + " does not exist");
-                }
-                try {
-                    reader = new DatabaseReader.Builder(f).build();
-                } catch (IOException ex) {
-                    throw new HiveException(ex);
-                }
+        if (lookup == null) {
+            this.database = ((StringObjectInspector) argumentOIs[2]).getPrimitiveJavaObject(arguments[2].get());
+            try {
+                lookup = new CityLookup(database, (conf != null) ? conf : new Configuration());
+            } catch (IOException ex) {
+                throw new HiveException(database + " can not be opened", ex);
             }
         }
 
         sb.setLength(0);
 
         try {
-            CityResponse cityResponse = (ipString != null) ? reader.city(InetAddress.getByName(ipString)) :
-                    reader.city(InetAddress.getByName(longToIp(ipLong)));
-            boolean first = true;
-            for (String p : property.split(",")) {
-                if (first) {
-                    first = false;
-                } else {
+            Object[] values = lookup.lookup(ipKey, json);
+            if (values == null) {
+                return null;
+            }
+            for (int i = 0; i < properties.length; i++) {
+                if (i > 0) {
                     sb.append(",");
                 }
-                if (CITY_PROPERTIES.contains(p)) {
-                    if (p.equals(JSON)) {
-                        sb.append(cityResponse.toJson());
-                    } else if (p.equals(COUNTRY)) {
-                        sb.append(cityResponse.getCountry().getName());
-                    } else if (p.equals(COUNTRY_CODE)) {
-                        sb.append(cityResponse.getCountry().getIsoCode());
-                    } else if (p.equals(CITY)) {
-                        sb.append(cityResponse.getCity().getName());
-                    } else if (p.equals(LOCATION)) {
-                        Location location = cityResponse.getLocation();
-                        sb.append(location.getLatitude() + ":" + location.getLongitude());
-                    } else if (p.equals(POSTAL_CODE)) {
-                        sb.append(cityResponse.getPostal().getCode());
-                    } else if (p.equals(TIMEZONE)) {
-                        sb.append(cityResponse.getLocation().getTimeZone());
-                    } else if (p.equals(SUBDIVISION)) {
-                        sb.append(cityResponse.getMostSpecificSubdivision().getName());
-                    } else if (p.equals(SUBDIVISION_CODE)) {
-                        sb.append(cityResponse.getMostSpecificSubdivision().getIsoCode());
-                    }
-                } else {
-                    sb.append("null");
-                }
+                sb.append((properties[i] != null) ? values[properties[i].ordinal()] : null);
             }
 
         } catch (IOException | GeoIp2Exception e) {
@@ -177,6 +148,14 @@ public class GenericUDFGeoIP extends GenericUDF {
         return sb.toString();
     }
 
+    @Override
+    public void close() throws IOException {
+        if (lookup != null) {
+            lookup.close((mapredContext != null) ? mapredContext.getReporter() : null);
+            lookup = null;
+        }
+    }
+
     @Override
     public String getDisplayString(String[] children) {
         assert (children.length == 3);
@@ -0,0 +1,87 @@
+package spanner.monkey.hive;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import spanner.monkey.hive.geoip.CityLookup;
+import spanner.monkey.hive.geoip.CountryTable;
+import spanner.monkey.hive.geoip.DatabaseRegistry;
+
+import java.io.IOException;
+
+@Description(
+        name = "geoip_country",
+        value = "_FUNC_(ip,database) - country ISO code of an IPv4 address",
+        extended = "The database is compiled once per JVM into a sorted range table, " +
+                "lookups are a binary search. IPv6 addresses return null, use geoip for those."
+)
+public class GenericUDFGeoIPCountry extends GenericUDF {
+    private String database;
+    transient private CountryTable table;
+    transient private Configuration conf;
+
+    PrimitiveObjectInspector[] argumentOIs;
+
+    @Override
+    public void configure(MapredContext mapredContext) {
+        conf = mapredContext.getJobConf();
+    }
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments)
+            throws UDFArgumentException {
+
+        if (arguments.length != 2) {
+            throw new UDFArgumentLengthException(
+                    "The function geoip_country('input', 'datafile') accepts 2 arguments.");
+        }
+
+        if (!(arguments[0] instanceof StringObjectInspector) && !(arguments[0] instanceof LongObjectInspector)) {
+            throw new UDFArgumentTypeException(0,
+                    "The first parameter of geoip_country('input', 'datafile') should be string or bigint.");
+        }
+        if (!(arguments[1] instanceof StringObjectInspector)) {
+            throw new UDFArgumentTypeException(1,
+                    "The second parameter of geoip_country('input', 'datafile') should be string.");
+        }
+        argumentOIs = new PrimitiveObjectInspector[]{
+                (PrimitiveObjectInspector) arguments[0], (PrimitiveObjectInspector) arguments[1]};
+
+        return PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+        Object ipKey = CityLookup.toIpKey(arguments[0].get(), argumentOIs[0]);
+        if (!(ipKey instanceof Long)) {
+            return null;
+        }
+
+        if (table == null) {
+            this.database = ((StringObjectInspector) argumentOIs[1]).getPrimitiveJavaObject(arguments[1].get());
+            try {
+                table = DatabaseRegistry.getCountryTable(database, (conf != null) ? conf : new Configuration());
+            } catch (IOException ex) {
+                throw new HiveException(database + " can not be opened", ex);
+            }
+        }
+
+        return table.lookup((Long) ipKey);
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        assert (children.length == 2);
+        return "geoip_country ( " + children[0] + ", " + children[1] + " )";
+    }
+}
@@ -0,0 +1,127 @@
+package spanner.monkey.hive;
+
+import com.maxmind.geoip2.exception.GeoIp2Exception;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import spanner.monkey.hive.geoip.CityLookup;
+import spanner.monkey.hive.geoip.CityProperty;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+@Description(
+        name = "geoip_struct",
+        value = "_FUNC_(ip,database) - GEO IP lookup returning " +
+                "struct<country, country_code, city, latitude:double, longitude:double, " +
+                "timezone, postal_code, subdivision, subdivision_code>",
+        extended = "Returns null when the IP is malformed or unknown to the database."
+)
+public class GenericUDFGeoIPStruct extends GenericUDF {
+    private static final CityProperty[] FIELDS = new CityProperty[]{
+            CityProperty.COUNTRY, CityProperty.COUNTRY_CODE, CityProperty.CITY,
+            CityProperty.LATITUDE, CityProperty.LONGITUDE, CityProperty.TIMEZONE,
+            CityProperty.POSTAL_CODE, CityProperty.SUBDIVISION, CityProperty.SUBDIVISION_CODE};
+
+    private String database;
+    transient private CityLookup lookup;
+    transient private Configuration conf;
+    // the reporter is only set on the first row, after configure()
+    transient private MapredContext mapredContext;
+    transient private Object[] result;
+
+    PrimitiveObjectInspector[] argumentOIs;
+
+    @Override
+    public void configure(MapredContext mapredContext) {
+        conf = mapredContext.getJobConf();
+        this.mapredContext = mapredContext;
+    }
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments)
+            throws UDFArgumentException {
+
+        if (arguments.length != 2) {
+            throw new UDFArgumentLengthException(
+                    "The function geoip_struct('input', 'datafile') accepts 2 arguments.");
+        }
+
+        if (!(arguments[0] instanceof StringObjectInspector) && !(arguments[0] instanceof LongObjectInspector)) {
+            throw new UDFArgumentTypeException(0,
+                    "The first parameter of geoip_struct('input', 'datafile') should be string or bigint.");
+        }
+        if (!(arguments[1] instanceof StringObjectInspector)) {
+            throw new UDFArgumentTypeException(1,
+                    "The second parameter of geoip_struct('input', 'datafile') should be string.");
+        }
+        argumentOIs = new PrimitiveObjectInspector[]{
+                (PrimitiveObjectInspector) arguments[0], (PrimitiveObjectInspector) arguments[1]};
+
+        List<String> fieldNames = new ArrayList<String>(FIELDS.length);
+        List<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>(FIELDS.length);
+        for (CityProperty field : FIELDS) {
+            fieldNames.add(field.name().toLowerCase());
+            fieldOIs.add(field.isDouble() ? PrimitiveObjectInspectorFactory.javaDoubleObjectInspector
+                    : PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+        }
+        result = new Object[FIELDS.length];
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+        Object ipKey = CityLookup.toIpKey(arguments[0].get(), argumentOIs[0]);
+        if (ipKey == null) {
+            return null;
+        }
+
+        if (lookup == null) {
+            this.database = ((StringObjectInspector) argumentOIs[1]).getPrimitiveJavaObject(arguments[1].get());
+            try {
+                lookup = new CityLookup(database, (conf != null) ? conf : new Configuration());
+            } catch (IOException ex) {
+                throw new HiveException(database + " can not be opened", ex);
+            }
+        }
+
+        try {
+            Object[] values = lookup.lookup(ipKey, false);
+            if (values == null) {
+                return null;
+            }
+            for (int i = 0; i < FIELDS.length; i++) {
+                result[i] = values[FIELDS[i].ordinal()];
+            }
+        } catch (IOException | GeoIp2Exception e) {
+            return null;
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (lookup != null) {
+            lookup.close((mapredContext != null) ? mapredContext.getReporter() : null);
+            lookup = null;
+        }
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        assert (children.length == 2);
+        return "geoip_struct ( " + children[0] + ", " + children[1] + " )";
+    }
+}
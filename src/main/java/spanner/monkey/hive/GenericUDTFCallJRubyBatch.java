@@ -0,0 +1,292 @@
+package spanner.monkey.hive;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.Text;
+import org.jruby.RubyInstanceConfig;
+import org.jruby.embed.ScriptingContainer;
+import spanner.monkey.hive.scripting.ScriptingContainerPool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Batched exec_ruby: buffers the arguments of up to exec_ruby.batch.size rows
+ * and passes them to a single call of the 'exec_batch' method, which returns
+ * one result per row. Each output row is the arguments of an input row
+ * followed by its result, since with batching a lateral view can't line the
+ * results up with the rows they came from. With exec_ruby.batch.size=1
+ * every row is emitted as it comes, which keeps a lateral view correct.
+ */
+@Description(name = "exec_ruby_batch", value = "_FUNC_(RET_TYPE, FUNC_DEF, ARG1, ARG2, ...) - " +
+        "Evaluate the results of many rows at once by using an 'exec_batch' method defined in Ruby scriptlet, " +
+        "which takes an array of argument arrays and returns an array of results. " +
+        "Must not be used in LATERAL VIEW, since results are emitted a batch at a time and would be joined " +
+        "to the wrong rows: select it alone, it re-emits its arguments as arg1..argN followed by the result. " +
+        "Set exec_ruby.batch.size=1 to emit every row right away, which is safe in LATERAL VIEW.",
+        extended = "Example:\n" +
+                "> select exec_ruby_batch('', 'def exec_batch(rows) rows.map { |r| \"hello \" + r[0] } end', name)\n" +
+                "> as (name, greeting) from sample;\n" +
+                "monkey\thello monkey\n...")
+public class GenericUDTFCallJRubyBatch extends GenericUDTF {
+
+    public static final String CONF_BATCH_SIZE = "exec_ruby.batch.size";
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final String EVALUATE_METHOD = "exec_batch";
+
+    private boolean fixedMethodName = true;
+    private ObjectInspector scriptletOI;
+    private ObjectInspector retOI;
+    private ObjectInspectorConverters.Converter[] argsConverters;
+    private ObjectInspector[] argsOI;
+
+    // checked out of the pool on the first row, handed back in close()
+    private transient ScriptingContainer container;
+    // to correctly require ruby code
+    private String loadPath;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean first = true;
+    private Object receiver;
+    private String method;
+
+    private final List<List<Object>> rows = new ArrayList<List<Object>>();
+    private Object[] forwardObj;
+    private final Text retText = new Text();
+
+    private ObjectInspector getCastedOI(PrimitiveObjectInspector poi) {
+
+        ObjectInspector ret;
+        switch (poi.getPrimitiveCategory()) {
+            case BOOLEAN:
+                ret = PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(
+                        PrimitiveObjectInspector.PrimitiveCategory.BOOLEAN);
+                break;
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case TIMESTAMP:
+                ret = PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(
+                        PrimitiveObjectInspector.PrimitiveCategory.LONG);
+                break;
+            case VOID:
+            case FLOAT:
+            case DOUBLE:
+                ret = PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(
+                        PrimitiveObjectInspector.PrimitiveCategory.DOUBLE);
+                break;
+            case STRING:
+                ret = PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(
+                        PrimitiveObjectInspector.PrimitiveCategory.STRING);
+                break;
+            case BINARY:
+                ret = PrimitiveObjectInspectorFactory.getPrimitiveJavaObjectInspector(
+                        PrimitiveObjectInspector.PrimitiveCategory.BINARY);
+                break;
+            default:
+                ret = poi;
+                break;
+        }
+
+        return ret;
+    }
+
+    // scriptlet can be passed as String or List ([Script:String, Method_Name:String])
+    private void parseScriptletObjectInspector(ObjectInspector scriptletParam) {
+        if (scriptletParam.getCategory() == ObjectInspector.Category.LIST) {
+            fixedMethodName = false;
+            scriptletOI = (ListObjectInspector) scriptletParam;
+        } else if (scriptletParam instanceof StringObjectInspector) {
+            scriptletOI = (StringObjectInspector)
+                    ObjectInspectorUtils.getStandardObjectInspector(scriptletParam);
+        }
+    }
+
+    @Override
+    public void configure(MapredContext mapredContext) {
+        loadPath = mapredContext.getJobConf().get(ScriptingContainerPool.CONF_LOAD_PATH);
+        batchSize = mapredContext.getJobConf().getInt(CONF_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+    }
+
+    @Override
+    public StructObjectInspector initialize(StructObjectInspector argOIs) throws UDFArgumentException {
+
+        List<? extends StructField> fields = argOIs.getAllStructFieldRefs();
+        ObjectInspector[] parameters = new ObjectInspector[fields.size()];
+        for (int i = 0; i < parameters.length; i++) {
+            parameters[i] = fields.get(i).getFieldObjectInspector();
+        }
+
+        if (parameters.length < 2) {
+            throw new UDFArgumentTypeException(parameters.length - 1,
+                    "At least two arguments are expected.");
+        }
+
+        int argStart = 2;
+
+        // the first param is hint of return type
+        // currently it can be list, map or String
+        parseScriptletObjectInspector(parameters[1]);
+        if (parameters[0].getCategory() == ObjectInspector.Category.LIST) {
+            retOI = ObjectInspectorFactory.getStandardListObjectInspector(
+                    getCastedOI((PrimitiveObjectInspector) ((ListObjectInspector) parameters[0]).getListElementObjectInspector())
+            );
+        } else if (parameters[0].getCategory() == ObjectInspector.Category.MAP) {
+            retOI = ObjectInspectorFactory.getStandardMapObjectInspector(
+                    getCastedOI((PrimitiveObjectInspector) ((MapObjectInspector) parameters[0]).getMapKeyObjectInspector()),
+                    getCastedOI((PrimitiveObjectInspector) ((MapObjectInspector) parameters[0]).getMapValueObjectInspector())
+            );
+        } else {
+            retOI = PrimitiveObjectInspectorFactory.getPrimitiveWritableObjectInspector(PrimitiveObjectInspector.PrimitiveCategory.STRING);
+        }
+
+        if (scriptletOI == null) {
+            throw new UDFArgumentTypeException(1,
+                    "Wrong scriptlet argument: "
+                            + parameters[1].getTypeName() + " (" + parameters[1].getCategory() + ") was passed as parameter 2"
+                            + ".");
+        }
+
+        // the same conversions as exec_ruby, so exec_batch sees the same types
+        argsConverters = new ObjectInspectorConverters.Converter[parameters.length - argStart];
+        argsOI = new ObjectInspector[parameters.length - argStart];
+        ArrayList<String> fieldNames = new ArrayList<String>();
+        ArrayList<ObjectInspector> fieldOIs = new ArrayList<ObjectInspector>();
+        for (int i = argStart; i < parameters.length; i++) {
+            argsOI[i - argStart] = UDFUtils.solveOi(parameters[i]);
+            argsConverters[i - argStart] = ObjectInspectorConverters.getConverter(
+                    parameters[i],
+                    argsOI[i - argStart]
+            );
+            fieldNames.add("arg" + (i - argStart + 1));
+            fieldOIs.add(argsOI[i - argStart]);
+        }
+        fieldNames.add("result");
+        fieldOIs.add(retOI);
+        forwardObj = new Object[fieldOIs.size()];
+
+        // compile a constant scriptlet up front, but only inside a task
+        if (parameters[1] instanceof ConstantObjectInspector && MapredContext.get() != null) {
+            Object constant = ((ConstantObjectInspector) parameters[1]).getWritableConstantValue();
+            if (constant instanceof List) {
+                List<?> list = (List<?>) constant;
+                if (list.size() >= 2) {
+                    prepare(list.get(0).toString(), list.get(1).toString());
+                }
+            } else if (constant != null) {
+                prepare(constant.toString(), EVALUATE_METHOD);
+            }
+        }
+
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+
+    private void prepare(String scriptlet, String methodName) {
+        if (container == null) {
+            container = ScriptingContainerPool.acquire(
+                    (loadPath != null) ? loadPath : ScriptingContainerPool.getDefaultLoadPath(),
+                    RubyInstanceConfig.CompileMode.JIT, false, scriptlet);
+        }
+        receiver = ScriptingContainerPool.runScriptlet(container, scriptlet);
+        method = methodName;
+        first = false;
+    }
+
+    @Override
+    public void process(Object[] parameters) throws HiveException {
+
+        int argStart = 2;
+
+        // only parse script at the first input
+        if (first) {
+            if (fixedMethodName) {
+                prepare(((StringObjectInspector) scriptletOI).getPrimitiveJavaObject(parameters[argStart - 1]),
+                        EVALUATE_METHOD);
+            } else {
+                ListObjectInspector listOI = (ListObjectInspector) scriptletOI;
+                prepare(((Text) listOI.getListElement(parameters[argStart - 1], 0)).toString(),
+                        ((Text) listOI.getListElement(parameters[argStart - 1], 1)).toString());
+            }
+        }
+
+        // converters reuse their output, and the arguments are held until the batch is evaluated
+        List<Object> args = new ArrayList<Object>(parameters.length - argStart);
+        for (int i = argStart; i < parameters.length; i++) {
+            args.add(ObjectInspectorUtils.copyToStandardObject(
+                    argsConverters[i - argStart].convert(parameters[i]), argsOI[i - argStart]));
+        }
+        rows.add(args);
+
+        if (rows.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private void flush() throws HiveException {
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        Object ret = container.callMethod(receiver, method, rows);
+        if (!(ret instanceof List) || ((List) ret).size() != rows.size()) {
+            throw new HiveException(method + " must return an array of " + rows.size() + " results, but returned "
+                    + ((ret instanceof List) ? ((List) ret).size() + " results" : String.valueOf(ret)));
+        }
+
+        List results = (List) ret;
+        for (int r = 0; r < rows.size(); r++) {
+            List<Object> args = rows.get(r);
+            for (int i = 0; i < args.size(); i++) {
+                forwardObj[i] = args.get(i);
+            }
+            forwardObj[args.size()] = toResult(results.get(r));
+            forward(forwardObj);
+        }
+        rows.clear();
+    }
+
+    private Object toResult(Object ret) {
+        if (retOI.getCategory() == ObjectInspector.Category.LIST) {
+            ArrayList list = new ArrayList();
+            list.addAll((List) ret);
+            return list;
+        } else if (retOI.getCategory() == ObjectInspector.Category.MAP) {
+            HashMap map = new HashMap();
+            map.putAll((Map) ret);
+            return map;
+        } else {
+            retText.set(String.valueOf(ret));
+            return retText;
+        }
+    }
+
+    @Override
+    public void close() throws HiveException {
+        try {
+            if (container != null) {
+                flush();
+            }
+        } finally {
+            if (container != null) {
+                ScriptingContainerPool.release(container);
+                container = null;
+                first = true;
+            }
+            rows.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "exec_ruby_batch";
+    }
+}
@@ -1,14 +1,17 @@
 package spanner.monkey.hive;
 
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationType;
 import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.StandardMapObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 
 import java.util.HashMap;
@@ -17,9 +20,9 @@ import java.util.Map;
 /**
  * Aggregate all maps into a single map. If there are multiple values for
  * the same key, result can contain any of those values.
- * Because the mappers must keep all of the data in memory, if your data is
- * non-trivially large you should set hive.map.aggr=false to ensure that
- * UNION_MAP is only executed in the reduce phase.
+ * The buffer reports its estimated size, so with hive.map.aggr on the mappers
+ * flush their hash aggregation (hive.map.aggr.hash.percentmemory) before
+ * running out of memory on large groups.
  */
 @Description(
         name = "union_map",
@@ -38,13 +41,33 @@ public class UDAFUnionMap extends AbstractGenericUDAFResolver {
         return new Evaluator();
     }
 
-    public static class State implements AggregationBuffer {
+    @AggregationType(estimable = true)
+    public static class State extends EstimableAggregationBuffer {
         HashMap<Object, Object> map = new HashMap<Object, Object>();
     }
 
     public static class Evaluator extends GenericUDAFEvaluator {
         transient ObjectInspector inputOI;
         transient MapObjectInspector internalMergeOI;
+        transient StandardMapObjectInspector outputOI;
+        transient AggregationBufferMetrics metrics;
+
+        private AggregationBufferMetrics getMetrics() {
+            if (metrics == null) {
+                metrics = new AggregationBufferMetrics("union_map");
+            }
+            return metrics;
+        }
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            getMetrics().configure(mapredContext);
+        }
+
+        @Override
+        public void close() {
+            getMetrics().close();
+        }
 
         @Override
         public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
@@ -54,7 +77,8 @@ public class UDAFUnionMap extends AbstractGenericUDAFResolver {
             } else {
                 internalMergeOI = (MapObjectInspector) parameters[0];
             }
-            return ObjectInspectorUtils.getStandardObjectInspector(parameters[0]);
+            outputOI = (StandardMapObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(parameters[0]);
+            return outputOI;
         }
 
         @Override
@@ -65,23 +89,22 @@ public class UDAFUnionMap extends AbstractGenericUDAFResolver {
         @Override
         public void iterate(AggregationBuffer agg, Object[] input) throws HiveException {
             if (input[0] != null) {
-                State state = (State) agg;
-                state.map.putAll((Map<?, ?>) ObjectInspectorUtils.copyToStandardObject(input[0], inputOI));
+                putAll((State) agg, (Map<?, ?>) ObjectInspectorUtils.copyToStandardObject(input[0], inputOI));
             }
         }
 
         @Override
         public void merge(AggregationBuffer agg, Object partial) throws HiveException {
             if (partial != null) {
-                State state = (State) agg;
-                Map<?, ?> pset = (Map<?, ?>) ObjectInspectorUtils.copyToStandardObject(partial, internalMergeOI);
-                state.map.putAll(pset);
+                putAll((State) agg, (Map<?, ?>) ObjectInspectorUtils.copyToStandardObject(partial, internalMergeOI));
             }
         }
 
         @Override
         public void reset(AggregationBuffer agg) throws HiveException {
-            ((State) agg).map.clear();
+            State state = (State) agg;
+            state.map.clear();
+            state.resetBytes();
         }
 
         @Override
@@ -91,7 +114,22 @@ public class UDAFUnionMap extends AbstractGenericUDAFResolver {
 
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            getMetrics().record((State) agg);
             return ((State) agg).map;
         }
+
+        private void putAll(State state, Map<?, ?> m) {
+            ObjectInspector keyOI = outputOI.getMapKeyObjectInspector();
+            ObjectInspector valueOI = outputOI.getMapValueObjectInspector();
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                Object old = state.map.put(e.getKey(), e.getValue());
+                if (old == null) {
+                    state.addBytes(EstimableAggregationBuffer.sizeOfEntry(e.getKey(), keyOI, e.getValue(), valueOI));
+                } else {
+                    state.addBytes(EstimableAggregationBuffer.sizeOf(e.getValue(), valueOI)
+                            - EstimableAggregationBuffer.sizeOf(old, valueOI));
+                }
+            }
+        }
     }
 }
\ No newline at end of file
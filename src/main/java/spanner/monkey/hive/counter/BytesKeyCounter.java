@@ -0,0 +1,167 @@
+package spanner.monkey.hive.counter;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Open-addressing counter keyed by byte sequences, e.g. the contents of a Text.
+ * Key bytes are appended to one shared arena, so counting a key that is
+ * already known neither hashes twice nor allocates.
+ * Entries are numbered 0 .. size()-1 in insertion order.
+ */
+public class BytesKeyCounter
+{
+    private static final int INITIAL_SLOTS = 64;
+    private static final int INITIAL_ARENA = 1024;
+
+    // entry index + 1 for each slot, 0 for an empty slot
+    private int[] slots;
+    private int mask;
+
+    private int[] hashes;
+    private int[] offsets;
+    private int[] lengths;
+    private long[] counts;
+    private int size;
+
+    private byte[] arena;
+    private int arenaLength;
+
+    public BytesKeyCounter()
+    {
+        clear();
+    }
+
+    public void clear()
+    {
+        slots = new int[INITIAL_SLOTS];
+        mask = INITIAL_SLOTS - 1;
+        hashes = new int[INITIAL_SLOTS / 2];
+        offsets = new int[INITIAL_SLOTS / 2];
+        lengths = new int[INITIAL_SLOTS / 2];
+        counts = new long[INITIAL_SLOTS / 2];
+        size = 0;
+        arena = new byte[INITIAL_ARENA];
+        arenaLength = 0;
+    }
+
+    public void add(byte[] bytes, int start, int length, long delta)
+    {
+        int hash = mix(WritableComparator.hashBytes(bytes, start, length));
+        int slot = hash & mask;
+        for (int e = slots[slot] - 1; e >= 0; e = slots[slot] - 1) {
+            if (hashes[e] == hash &&
+                    WritableComparator.compareBytes(arena, offsets[e], lengths[e], bytes, start, length) == 0) {
+                counts[e] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        slots[slot] = append(hash, bytes, start, length, delta) + 1;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+    }
+
+    public void add(Text key, long delta)
+    {
+        add(key.getBytes(), 0, key.getLength(), delta);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public long getCount(int entry)
+    {
+        return counts[entry];
+    }
+
+    public Text getKey(int entry)
+    {
+        Text key = new Text();
+        key.set(arena, offsets[entry], lengths[entry]);
+        return key;
+    }
+
+    /**
+     * Entries sorted by key bytes, the same order as Text.compareTo.
+     */
+    public int[] sortedEntries()
+    {
+        Integer[] order = new Integer[size];
+        for (int e = 0; e < size; e++) {
+            order[e] = e;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer e1, Integer e2)
+            {
+                return WritableComparator.compareBytes(arena, offsets[e1], lengths[e1], arena, offsets[e2], lengths[e2]);
+            }
+        });
+
+        int[] ret = new int[size];
+        for (int i = 0; i < size; i++) {
+            ret[i] = order[i];
+        }
+        return ret;
+    }
+
+    public long estimateBytes()
+    {
+        return 4L * slots.length + 20L * counts.length + arena.length;
+    }
+
+    private int append(int hash, byte[] bytes, int start, int length, long delta)
+    {
+        if (size == counts.length) {
+            int capacity = counts.length * 2;
+            hashes = Arrays.copyOf(hashes, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        if (arenaLength + length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + length));
+        }
+        System.arraycopy(bytes, start, arena, arenaLength, length);
+
+        hashes[size] = hash;
+        offsets[size] = arenaLength;
+        lengths[size] = length;
+        counts[size] = delta;
+        arenaLength += length;
+        return size++;
+    }
+
+    private void rehash(int capacity)
+    {
+        slots = new int[capacity];
+        mask = capacity - 1;
+        for (int e = 0; e < size; e++) {
+            int slot = hashes[e] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = e + 1;
+        }
+    }
+
+    // murmur3 finalizer, spreads the low bits used for slot selection
+    static int mix(int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,128 @@
+package spanner.monkey.hive.counter;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Open-addressing counter keyed by primitive longs.
+ * Entries are numbered 0 .. size()-1 in insertion order.
+ */
+public class LongKeyCounter
+{
+    private static final int INITIAL_SLOTS = 64;
+
+    // entry index + 1 for each slot, 0 for an empty slot
+    private int[] slots;
+    private int mask;
+
+    private long[] keys;
+    private long[] counts;
+    private int size;
+
+    public LongKeyCounter()
+    {
+        clear();
+    }
+
+    public void clear()
+    {
+        slots = new int[INITIAL_SLOTS];
+        mask = INITIAL_SLOTS - 1;
+        keys = new long[INITIAL_SLOTS / 2];
+        counts = new long[INITIAL_SLOTS / 2];
+        size = 0;
+    }
+
+    public void add(long key, long delta)
+    {
+        int slot = hash(key) & mask;
+        for (int e = slots[slot] - 1; e >= 0; e = slots[slot] - 1) {
+            if (keys[e] == key) {
+                counts[e] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == counts.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        keys[size] = key;
+        counts[size] = delta;
+        slots[slot] = ++size;
+
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public long getKey(int entry)
+    {
+        return keys[entry];
+    }
+
+    public long getCount(int entry)
+    {
+        return counts[entry];
+    }
+
+    /**
+     * Entries sorted by key, smallest first.
+     */
+    public int[] sortedEntries()
+    {
+        Integer[] order = new Integer[size];
+        for (int e = 0; e < size; e++) {
+            order[e] = e;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer e1, Integer e2)
+            {
+                return Long.compare(keys[e1], keys[e2]);
+            }
+        });
+
+        int[] ret = new int[size];
+        for (int i = 0; i < size; i++) {
+            ret[i] = order[i];
+        }
+        return ret;
+    }
+
+    public long estimateBytes()
+    {
+        return 4L * slots.length + 16L * counts.length;
+    }
+
+    private void rehash(int capacity)
+    {
+        slots = new int[capacity];
+        mask = capacity - 1;
+        for (int e = 0; e < size; e++) {
+            int slot = hash(keys[e]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = e + 1;
+        }
+    }
+
+    // murmur3 64-bit finalizer
+    static int hash(long k)
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return (int) k;
+    }
+}
@@ -0,0 +1,237 @@
+package spanner.monkey.hive.counter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-Saving heavy hitters summary (Metwally et al.) over at most
+ * `capacity` counters. A key's true count lies in [count - error, count].
+ * Counters sit in an indexed min-heap on count so the one to evict is
+ * always at the top. Summaries are merged as described in Agarwal et al.,
+ * "Mergeable Summaries".
+ * Keys must be immutable copies with proper equals/hashCode.
+ */
+public class SpaceSaving
+{
+    private final int capacity;
+
+    private Object[] keys;
+    private long[] counts;
+    private long[] errors;
+    private int size;
+
+    // heap position -> entry, and entry -> heap position
+    private int[] heap;
+    private int[] positions;
+    private Map<Object, Integer> index;
+
+    public SpaceSaving(int capacity)
+    {
+        this.capacity = capacity;
+        clear();
+    }
+
+    public void clear()
+    {
+        keys = new Object[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        heap = new int[capacity];
+        positions = new int[capacity];
+        index = new HashMap<Object, Integer>();
+        size = 0;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isFull()
+    {
+        return size == capacity;
+    }
+
+    // the count any untracked key may have reached
+    public long minCount()
+    {
+        return isFull() ? counts[heap[0]] : 0;
+    }
+
+    // entry holding the key, or -1
+    public int find(Object key)
+    {
+        Integer e = index.get(key);
+        return (e == null) ? -1 : e;
+    }
+
+    public void increment(int entry, long count)
+    {
+        counts[entry] += count;
+        siftDown(positions[entry]);
+    }
+
+    /**
+     * Tracks a key that is not in the summary yet, evicting the smallest
+     * counter once full. The evicted count becomes part of the error.
+     */
+    public void insert(Object key, long count, long error)
+    {
+        if (size < capacity) {
+            int e = size++;
+            keys[e] = key;
+            counts[e] = count;
+            errors[e] = error;
+            heap[e] = e;
+            positions[e] = e;
+            index.put(key, e);
+            siftUp(e);
+            return;
+        }
+
+        int e = heap[0];
+        long min = counts[e];
+        index.remove(keys[e]);
+        keys[e] = key;
+        counts[e] = min + count;
+        errors[e] = min + error;
+        index.put(key, e);
+        siftDown(0);
+    }
+
+    /**
+     * Merges another summary given as parallel arrays.
+     * Keys missing from one side are charged that side's minimum count.
+     */
+    public void merge(Object[] otherKeys, long[] otherCounts, long[] otherErrors, int otherSize, boolean otherFull)
+    {
+        long min = minCount();
+        long otherMin = 0;
+        if (otherFull) {
+            otherMin = Long.MAX_VALUE;
+            for (int i = 0; i < otherSize; i++) {
+                otherMin = Math.min(otherMin, otherCounts[i]);
+            }
+        }
+
+        Map<Object, long[]> combined = new HashMap<Object, long[]>(2 * (size + otherSize));
+        for (int e = 0; e < size; e++) {
+            combined.put(keys[e], new long[]{counts[e] + otherMin, errors[e] + otherMin});
+        }
+        for (int i = 0; i < otherSize; i++) {
+            long[] c = combined.get(otherKeys[i]);
+            if (c != null) {
+                c[0] += otherCounts[i] - otherMin;
+                c[1] += otherErrors[i] - otherMin;
+            } else {
+                combined.put(otherKeys[i], new long[]{otherCounts[i] + min, otherErrors[i] + min});
+            }
+        }
+
+        List<Map.Entry<Object, long[]>> entries = new ArrayList<Map.Entry<Object, long[]>>(combined.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Object, long[]>>()
+        {
+            @Override
+            public int compare(Map.Entry<Object, long[]> e1, Map.Entry<Object, long[]> e2)
+            {
+                return Long.compare(e2.getValue()[0], e1.getValue()[0]);
+            }
+        });
+
+        clear();
+        for (int i = 0; i < entries.size() && i < capacity; i++) {
+            long[] c = entries.get(i).getValue();
+            insert(entries.get(i).getKey(), c[0], c[1]);
+        }
+    }
+
+    /**
+     * Entries sorted by count, largest first.
+     */
+    public int[] sortedEntries()
+    {
+        Integer[] order = new Integer[size];
+        for (int e = 0; e < size; e++) {
+            order[e] = e;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer e1, Integer e2)
+            {
+                return Long.compare(counts[e2], counts[e1]);
+            }
+        });
+
+        int[] ret = new int[size];
+        for (int i = 0; i < size; i++) {
+            ret[i] = order[i];
+        }
+        return ret;
+    }
+
+    public Object getKey(int entry)
+    {
+        return keys[entry];
+    }
+
+    public long getCount(int entry)
+    {
+        return counts[entry];
+    }
+
+    public long getError(int entry)
+    {
+        return errors[entry];
+    }
+
+    private void siftUp(int pos)
+    {
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[heap[pos]]) {
+                break;
+            }
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int pos)
+    {
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[heap[pos]] <= counts[heap[child]]) {
+                break;
+            }
+            swap(pos, child);
+            pos = child;
+        }
+    }
+
+    private void swap(int p1, int p2)
+    {
+        int e1 = heap[p1];
+        int e2 = heap[p2];
+        heap[p1] = e2;
+        heap[p2] = e1;
+        positions[e2] = p1;
+        positions[e1] = p2;
+    }
+}
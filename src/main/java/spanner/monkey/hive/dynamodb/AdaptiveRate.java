@@ -0,0 +1,59 @@
+package spanner.monkey.hive.dynamodb;
+
+/**
+ * AIMD write rate under a ceiling.
+ * Throttling multiplies the rate by a decrease factor, at most once per
+ * second so that a burst of throttled in-flight requests counts once.
+ * Successful writes raise it back linearly, by a fraction of the ceiling
+ * per second.
+ */
+public class AdaptiveRate
+{
+    private static final long DECREASE_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final double decrease;
+    private final double increase;
+    private double ceiling;
+    private double rate;
+    private long lastIncrease = System.nanoTime();
+    private long lastDecrease = 0;
+
+    public AdaptiveRate(double ceiling, double decrease, double increase)
+    {
+        this.ceiling = ceiling;
+        this.rate = ceiling;
+        this.decrease = decrease;
+        this.increase = increase;
+    }
+
+    public synchronized double getRate()
+    {
+        return rate;
+    }
+
+    public synchronized double setCeiling(double ceiling)
+    {
+        this.ceiling = ceiling;
+        rate = Math.min(rate, ceiling);
+        return rate;
+    }
+
+    public synchronized double onSuccess()
+    {
+        long now = System.nanoTime();
+        rate = Math.min(ceiling, rate + ceiling * increase * (now - lastIncrease) / 1_000_000_000L);
+        lastIncrease = now;
+        return rate;
+    }
+
+    public synchronized double onThrottle()
+    {
+        long now = System.nanoTime();
+        if (lastDecrease == 0 || now - lastDecrease > DECREASE_INTERVAL_NANOS) {
+            rate = Math.max(Math.min(1, ceiling), rate * decrease);
+            lastDecrease = now;
+        }
+        lastIncrease = now;
+        return rate;
+    }
+}
@@ -0,0 +1,133 @@
+package spanner.monkey.hive.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.AttributeUpdate;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind buffer merging the attribute updates of a key until it is
+ * evicted, so repeated rows of a key cost one UpdateItem.
+ * Updates of the same attribute replace each other (ddb_update only puts).
+ * The least recently updated keys are evicted once more than maxKeys keys or
+ * about maxBytes of values are pending.
+ */
+public class CoalescingBuffer
+{
+    public static class Pending
+    {
+        public final PrimaryKey key;
+        private final Map<String, AttributeUpdate> updates = new LinkedHashMap<String, AttributeUpdate>();
+        private long bytes = 0;
+
+        Pending(PrimaryKey key)
+        {
+            this.key = key;
+        }
+
+        public List<AttributeUpdate> getUpdates()
+        {
+            return new ArrayList<AttributeUpdate>(updates.values());
+        }
+    }
+
+    private final int maxKeys;
+    private final long maxBytes;
+    // access order, so the least recently updated key is evicted first
+    private final LinkedHashMap<List<Object>, Pending> pending =
+            new LinkedHashMap<List<Object>, Pending>(16, 0.75f, true);
+    private long bytes = 0;
+    private long merged = 0;
+
+    public CoalescingBuffer(int maxKeys, long maxBytes)
+    {
+        this.maxKeys = maxKeys;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Merges the updates into the pending ones of the key.
+     *
+     * @return the keys evicted to stay within bounds, to be written now
+     */
+    public List<Pending> add(List<Object> keyValues, PrimaryKey key, List<AttributeUpdate> updates)
+    {
+        Pending entry = pending.get(keyValues);
+        if (entry == null) {
+            entry = new Pending(key);
+            pending.put(keyValues, entry);
+        }
+        else {
+            merged++;
+        }
+
+        bytes -= entry.bytes;
+        for (AttributeUpdate update : updates) {
+            entry.updates.put(update.getAttributeName(), update);
+        }
+        entry.bytes = 0;
+        for (AttributeUpdate update : entry.updates.values()) {
+            entry.bytes += update.getAttributeName().length() + sizeOf(update.getValue());
+        }
+        bytes += entry.bytes;
+
+        List<Pending> evicted = new ArrayList<Pending>();
+        Iterator<Pending> eldest = pending.values().iterator();
+        while (pending.size() > maxKeys || (bytes > maxBytes && pending.size() > 1)) {
+            Pending e = eldest.next();
+            eldest.remove();
+            bytes -= e.bytes;
+            evicted.add(e);
+        }
+        return evicted;
+    }
+
+    public List<Pending> drain()
+    {
+        List<Pending> all = new ArrayList<Pending>(pending.values());
+        pending.clear();
+        bytes = 0;
+        return all;
+    }
+
+    /**
+     * Number of rows merged into an already pending key, i.e. UpdateItems saved.
+     */
+    public long getMerged()
+    {
+        return merged;
+    }
+
+    private static long sizeOf(Object value)
+    {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return ((String) value).length();
+        }
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        if (value instanceof Collection) {
+            long size = 0;
+            for (Object element : (Collection<?>) value) {
+                size += sizeOf(element);
+            }
+            return size;
+        }
+        if (value instanceof Map) {
+            long size = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+            }
+            return size;
+        }
+        return 8;
+    }
+}
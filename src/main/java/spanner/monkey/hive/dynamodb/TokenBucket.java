@@ -0,0 +1,75 @@
+package spanner.monkey.hive.dynamodb;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket of write capacity units.
+ * Callers wait in {@link #acquire()} while the bucket is in debt, then pay the
+ * capacity a request actually consumed with {@link #consume(double)}, so the
+ * bucket may go negative by the cost of the requests in flight.
+ * Unused capacity accumulates up to burstSeconds worth of the rate.
+ */
+public class TokenBucket
+{
+    private final double burstSeconds;
+    private double rate;
+    private double tokens = 0;
+    private long last = System.nanoTime();
+
+    public TokenBucket(double rate, double burstSeconds)
+    {
+        this.rate = rate;
+        this.burstSeconds = burstSeconds;
+    }
+
+    /**
+     * Parks the calling thread until the bucket is out of debt.
+     *
+     * @return nanoseconds spent waiting
+     */
+    public long acquire() throws InterruptedException
+    {
+        long waited = 0;
+        while (true) {
+            long wait;
+            synchronized (this) {
+                refill();
+                if (tokens >= 0) {
+                    return waited;
+                }
+                wait = (long) (-tokens / rate * 1_000_000_000L);
+            }
+
+            long before = System.nanoTime();
+            LockSupport.parkNanos(this, wait);
+            waited += System.nanoTime() - before;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    public synchronized void consume(double units)
+    {
+        refill();
+        tokens -= units;
+    }
+
+    public synchronized double getRate()
+    {
+        return rate;
+    }
+
+    public synchronized void setRate(double rate)
+    {
+        refill();
+        this.rate = rate;
+    }
+
+    private void refill()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(rate * burstSeconds, tokens + (now - last) * rate / 1_000_000_000L);
+        last = now;
+    }
+}
@@ -2,22 +2,57 @@ package spanner.monkey.hive.dynamodb;
 
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.InstanceProfileCredentialsProvider;
+import com.amazonaws.internal.StaticCredentialsProvider;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.document.AttributeUpdate;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.document.UpdateItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.internal.InternalUtils;
 import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by yuyanglan on 6/23/15.
@@ -27,11 +62,40 @@ public class UpdateHelper
     public static final String CONF_DYNAMODB_NAME = "ddb_update.table.name";
     public static final String CONF_DYNAMODB_WRITE_THROUGHPUT = "ddb_update.write.throughput";
     public static final String CONF_DYNAMODB_WRITE_THROUGHPUT_PERCENTAGE = "ddb_update.write.throughput.percentage";
+    // endpoint URL overriding the region's, e.g. a DynamoDB Local instance
+    public static final String CONF_DYNAMODB_ENDPOINT = "ddb_update.endpoint";
+    public static final String CONF_DYNAMODB_REGION = "ddb_update.region";
+    // static credentials, the instance profile is used when unset
+    public static final String CONF_DYNAMODB_ACCESS_KEY = "ddb_update.access.key";
+    public static final String CONF_DYNAMODB_SECRET_KEY = "ddb_update.secret.key";
+    // 0 writes synchronously on the reducer thread
+    public static final String CONF_DYNAMODB_WRITER_THREADS = "ddb_update.writer.threads";
+    // requests queued or running across all writer threads, defaults to twice the threads
+    public static final String CONF_DYNAMODB_MAX_INFLIGHT = "ddb_update.max.inflight";
+    // seconds of unused capacity a writer may save up and spend at once
+    public static final String CONF_DYNAMODB_BURST_SECONDS = "ddb_update.burst.seconds";
+    // retries of a throttled request before the task fails
+    public static final String CONF_DYNAMODB_MAX_RETRIES = "ddb_update.max.retries";
+    // factor applied to the write rate when throttled
+    public static final String CONF_DYNAMODB_RATE_DECREASE = "ddb_update.rate.decrease";
+    // fraction of the write budget the rate recovers per second without throttling
+    public static final String CONF_DYNAMODB_RATE_INCREASE = "ddb_update.rate.increase";
+    // keys whose updates are merged before writing, 0 writes every update
+    public static final String CONF_DYNAMODB_COALESCE_KEYS = "ddb_update.coalesce.keys";
+    public static final String CONF_DYNAMODB_COALESCE_BYTES = "ddb_update.coalesce.bytes";
+    public static final String COUNTER_GROUP = "monkey-spanner";
+    // BatchWriteItem accepts at most 25 items per request
+    public static final int BATCH_SIZE = 25;
+    private static final long RETRY_BASE_MILLIS = 50;
+    private static final long RETRY_MAX_MILLIS = 10000;
     public final String tableName;
     public final long configWriteThroughput;
     public final double configWriteThroughputPercentage;
+    public final long totalWriteThroughput;
     public final long writeThroughput;
     public final int reduceTasks;
+    public final int writerThreads;
+    public final int maxRetries;
     private final TableDescription tableDescribe;
     private Log LOG = LogFactory.getLog(UpdateHelper.class.getName());
     private DynamoDB ddb;
@@ -39,37 +103,145 @@ public class UpdateHelper
     private Table ddbTable;
     private long updateCounter = 0;
     private double consumedCapacityCounter = 0;
-    private Long start = null;
+    private final TokenBucket limiter;
+    private final AdaptiveRate adaptiveRate;
+    private final WriterCoordinator coordinator;
+    private final CoalescingBuffer coalescer;
+    // the reporter is only set on the first row, after configure()
+    private final MapredContext mapredContext;
+
+    private final List<String> keyNames = new ArrayList<String>();
+
+    /**
+     * Writes of a key always go through the same stripe, each with its own
+     * single writer thread, so they are applied in the order they were made.
+     */
+    private static class Stripe
+    {
+        final List<WriteRequest> pendingPuts = new ArrayList<WriteRequest>(BATCH_SIZE);
+        final Set<List<Object>> pendingKeys = new HashSet<List<Object>>();
+        final ExecutorService writer;
+
+        Stripe(ExecutorService writer)
+        {
+            this.writer = writer;
+        }
+    }
+
+    private interface Write
+    {
+        void run() throws HiveException;
+    }
 
-    public UpdateHelper(JobConf jobConf)
+    private final Stripe[] stripes;
+    private final Semaphore inflight;
+    private final AtomicReference<Throwable> asyncError = new AtomicReference<Throwable>();
+
+    public UpdateHelper(JobConf jobConf, MapredContext mapredContext)
     {
+        this.mapredContext = mapredContext;
         this.tableName = jobConf.get(UpdateHelper.CONF_DYNAMODB_NAME);
         this.configWriteThroughput = jobConf.getLong(UpdateHelper.CONF_DYNAMODB_WRITE_THROUGHPUT, 0);
         this.configWriteThroughputPercentage = jobConf.getDouble(UpdateHelper.CONF_DYNAMODB_WRITE_THROUGHPUT_PERCENTAGE, 0.5);
         this.reduceTasks = jobConf.getNumReduceTasks();
+        this.writerThreads = jobConf.getInt(CONF_DYNAMODB_WRITER_THREADS, 0);
+        this.maxRetries = jobConf.getInt(CONF_DYNAMODB_MAX_RETRIES, 10);
 
         Preconditions.checkArgument(!Strings.isNullOrEmpty(tableName), "%s must be set!", CONF_DYNAMODB_NAME);
+        Preconditions.checkArgument(writerThreads >= 0, "%s can't be negative", CONF_DYNAMODB_WRITER_THREADS);
 
-        ClientConfiguration configuration = new ClientConfiguration();
-        configuration.setUseTcpKeepAlive(true);
-        configuration.setUseGzip(true);
-        ddbClient = Region.getRegion(Regions.AP_NORTHEAST_1).createClient(AmazonDynamoDBClient.class,
-                new InstanceProfileCredentialsProvider(), configuration);
+        ddbClient = createClient(jobConf, writerThreads);
         ddb = new DynamoDB(ddbClient);
 
         ddbTable = ddb.getTable(tableName);
         tableDescribe = ddbTable.describe();
+        for (KeySchemaElement element : tableDescribe.getKeySchema()) {
+            keyNames.add(element.getAttributeName());
+        }
 
         Long provisionedWriteCapacityUnits = tableDescribe.getProvisionedThroughput().getWriteCapacityUnits();
         if (configWriteThroughput == 0 || configWriteThroughput > provisionedWriteCapacityUnits) {
-            writeThroughput = (long) (provisionedWriteCapacityUnits * configWriteThroughputPercentage / reduceTasks);
+            totalWriteThroughput = (long) (provisionedWriteCapacityUnits * configWriteThroughputPercentage);
         }
         else {
-            writeThroughput = configWriteThroughput / reduceTasks;
+            totalWriteThroughput = configWriteThroughput;
         }
+        writeThroughput = totalWriteThroughput / reduceTasks;
 
         Preconditions.checkState(writeThroughput > 0, "writeThroughput can't be 0, please try set %s or %s",
                 CONF_DYNAMODB_WRITE_THROUGHPUT, CONF_DYNAMODB_WRITE_THROUGHPUT_PERCENTAGE);
+
+        limiter = new TokenBucket(writeThroughput, jobConf.getFloat(CONF_DYNAMODB_BURST_SECONDS, 5));
+        adaptiveRate = new AdaptiveRate(writeThroughput,
+                jobConf.getFloat(CONF_DYNAMODB_RATE_DECREASE, 0.5f),
+                jobConf.getFloat(CONF_DYNAMODB_RATE_INCREASE, 0.05f));
+        reportRate(writeThroughput);
+
+        int coalesceKeys = jobConf.getInt(CONF_DYNAMODB_COALESCE_KEYS, 0);
+        coalescer = (coalesceKeys > 0)
+                ? new CoalescingBuffer(coalesceKeys, jobConf.getLong(CONF_DYNAMODB_COALESCE_BYTES, 16 << 20))
+                : null;
+        if (Strings.isNullOrEmpty(jobConf.get(WriterCoordinator.CONF_COORDINATION_DIR))) {
+            coordinator = null;
+        }
+        else {
+            try {
+                coordinator = new WriterCoordinator(jobConf, tableName, reduceTasks);
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("can't register in " +
+                        jobConf.get(WriterCoordinator.CONF_COORDINATION_DIR), e);
+            }
+        }
+
+        if (writerThreads == 0) {
+            stripes = new Stripe[]{new Stripe(null)};
+            inflight = null;
+        }
+        else {
+            int maxInflight = jobConf.getInt(CONF_DYNAMODB_MAX_INFLIGHT, writerThreads * 2);
+            Preconditions.checkArgument(maxInflight >= writerThreads, "%s must be at least %s",
+                    CONF_DYNAMODB_MAX_INFLIGHT, CONF_DYNAMODB_WRITER_THREADS);
+
+            stripes = new Stripe[writerThreads];
+            for (int i = 0; i < writerThreads; i++) {
+                stripes[i] = new Stripe(Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                        .setNameFormat("ddb_update-writer-" + i)
+                        .setDaemon(true)
+                        .build()));
+            }
+            inflight = new Semaphore(maxInflight);
+            LOG.info(String.format("Writing asynchronously with %d threads and at most %d requests in flight",
+                    writerThreads, maxInflight));
+        }
+    }
+
+    private static AmazonDynamoDBClient createClient(JobConf jobConf, int writerThreads)
+    {
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.setUseTcpKeepAlive(true);
+        configuration.setUseGzip(true);
+        configuration.setMaxConnections(Math.max(configuration.getMaxConnections(), writerThreads));
+
+        AWSCredentialsProvider credentials;
+        String accessKey = jobConf.get(CONF_DYNAMODB_ACCESS_KEY);
+        if (Strings.isNullOrEmpty(accessKey)) {
+            credentials = new InstanceProfileCredentialsProvider();
+        }
+        else {
+            credentials = new StaticCredentialsProvider(
+                    new BasicAWSCredentials(accessKey, jobConf.get(CONF_DYNAMODB_SECRET_KEY, "")));
+        }
+
+        Regions region = Regions.fromName(jobConf.get(CONF_DYNAMODB_REGION, Regions.AP_NORTHEAST_1.getName()));
+        AmazonDynamoDBClient client = Region.getRegion(region).createClient(AmazonDynamoDBClient.class,
+                credentials, configuration);
+
+        String endpoint = jobConf.get(CONF_DYNAMODB_ENDPOINT);
+        if (!Strings.isNullOrEmpty(endpoint)) {
+            client.setEndpoint(endpoint);
+        }
+        return client;
     }
 
     public TableDescription describeTable()
@@ -77,48 +249,365 @@ public class UpdateHelper
         return tableDescribe;
     }
 
-    public void update(UpdateItemSpec spec) throws HiveException
+    /**
+     * Waits until the writer's share of the table throughput allows another request.
+     */
+    private void throttle() throws HiveException
     {
-        if (start == null) {
-            start = System.nanoTime();
+        if (coordinator != null) {
+            applyRate(adaptiveRate.setCeiling((double) totalWriteThroughput / coordinator.getLiveWriters()));
         }
-        else {
-            long end = Math.round(start + consumedCapacityCounter * 1_000_000_000L / writeThroughput);
-            if (System.nanoTime() < end) {
-                LOG.debug(String.format("waiting for throughput (%d writes, %f consumed capacity in %d ns",
-                        updateCounter, consumedCapacityCounter, end - start));
+
+        try {
+            long waited = limiter.acquire();
+            if (waited > 0 && LOG.isDebugEnabled()) {
+                LOG.debug(String.format("waited %d ns for throughput (%d writes, %f consumed capacity)",
+                        waited, getUpdateCounter(), getConsumedCapacityCounter()));
             }
-            while (System.nanoTime() < end) ;
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HiveException(e);
+        }
+    }
+
+    private void applyRate(double rate)
+    {
+        if (rate != limiter.getRate()) {
+            LOG.debug(String.format("write rate changed from %f/s to %f/s", limiter.getRate(), rate));
+            limiter.setRate(rate);
+            reportRate(rate);
+        }
+    }
+
+    private Reporter getReporter()
+    {
+        return (mapredContext != null) ? mapredContext.getReporter() : null;
+    }
+
+    private void reportRate(double rate)
+    {
+        Reporter reporter = getReporter();
+        Counters.Counter counter = (reporter != null) ? reporter.getCounter(COUNTER_GROUP, "ddb_update write rate") : null;
+        if (counter != null) {
+            counter.setValue(Math.round(rate));
+        }
+    }
 
+    /**
+     * Slows down after a throttled request and waits an exponential backoff with
+     * full jitter, or fails once the request was retried maxRetries times.
+     */
+    private void onThrottled(int attempt, String what) throws HiveException
+    {
+        Reporter reporter = getReporter();
+        if (reporter != null) {
+            reporter.incrCounter(COUNTER_GROUP, "ddb_update throttled requests", 1);
+        }
+        applyRate(adaptiveRate.onThrottle());
+
+        if (attempt >= maxRetries) {
+            throw new HiveException(String.format("%s still throttled after %d retries", what, attempt));
+        }
+        long backoff = ThreadLocalRandom.current().nextLong(
+                Math.min(RETRY_MAX_MILLIS, RETRY_BASE_MILLIS << Math.min(attempt, 20)) + 1);
+        LOG.debug(String.format("%s throttled, retrying in %d ms at %f/s", what, backoff, limiter.getRate()));
         try {
-            UpdateItemOutcome outcome = ddbTable.updateItem(spec);
-            consumedCapacityCounter += outcome.getUpdateItemResult().getConsumedCapacity().getCapacityUnits();
-            updateCounter++;
+            Thread.sleep(backoff);
         }
-        catch (ProvisionedThroughputExceededException e) {
-            LOG.warn(String.format("ProvisionedThroughputExceededException occured, try to speed down!",
-                    spec.getKeyComponents(), spec.getAttributeUpdate()));
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new HiveException(e);
+        }
+    }
 
+    private synchronized void recordWrite(long items, double capacity)
+    {
+        limiter.consume(capacity);
+
+        long before = updateCounter;
+        updateCounter += items;
+        consumedCapacityCounter += capacity;
+
+        long every = writeThroughput * 30;
+        if (before / every != updateCounter / every) {
+            LOG.info(String.format("updated %d items, consumed %f capacity", updateCounter, consumedCapacityCounter));
+        }
+    }
+
+    private Stripe stripeOf(List<Object> key)
+    {
+        return stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    /**
+     * Runs the write on the reducer thread, or queues it on the stripe's writer.
+     * Queuing blocks while max.inflight requests are pending, a failure of an
+     * earlier queued write is thrown here.
+     */
+    private void execute(Stripe stripe, final Write write) throws HiveException
+    {
+        checkAsyncError();
+        if (stripe.writer == null) {
+            write.run();
+            return;
+        }
+
+        try {
+            inflight.acquire();
         }
-        catch (AmazonServiceException e) {
-            LOG.error(String.format("update failed on key (%s): %s",
-                    spec.getKeyComponents(), spec.getAttributeUpdate()));
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new HiveException(e);
         }
+        stripe.writer.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    if (asyncError.get() == null) {
+                        write.run();
+                    }
+                }
+                catch (Throwable t) {
+                    asyncError.compareAndSet(null, t);
+                }
+                finally {
+                    inflight.release();
+                }
+            }
+        });
+    }
 
-        if ((updateCounter * 1.0 / writeThroughput) % 30 == 0) {
-            LOG.info(String.format("updated %d items, consumed %f capacity", updateCounter, consumedCapacityCounter));
+    private void checkAsyncError() throws HiveException
+    {
+        Throwable error = asyncError.get();
+        if (error != null) {
+            throw new HiveException("asynchronous write to " + tableName + " failed", error);
+        }
+    }
+
+    private static List<Object> keyOf(Collection<KeyAttribute> components)
+    {
+        List<Object> key = new ArrayList<Object>(components.size());
+        for (KeyAttribute component : components) {
+            key.add(component.getValue());
+        }
+        return key;
+    }
+
+    /**
+     * Puts the attributes of the item, merged with later updates of the same
+     * key first when ddb_update.coalesce.keys is set.
+     */
+    public void update(PrimaryKey key, List<AttributeUpdate> updates) throws HiveException
+    {
+        if (coalescer == null) {
+            update(newUpdateItemSpec(key, updates));
+            return;
+        }
+        for (CoalescingBuffer.Pending evicted : coalescer.add(keyOf(key.getComponents()), key, updates)) {
+            update(newUpdateItemSpec(evicted.key, evicted.getUpdates()));
+        }
+    }
+
+    private static UpdateItemSpec newUpdateItemSpec(PrimaryKey key, List<AttributeUpdate> updates)
+    {
+        return new UpdateItemSpec()
+                .withPrimaryKey(key)
+                .withAttributeUpdate(updates)
+                .withReturnValues(ReturnValue.NONE)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+    }
+
+    public void update(final UpdateItemSpec spec) throws HiveException
+    {
+        execute(stripeOf(keyOf(spec.getKeyComponents())), new Write()
+        {
+            @Override
+            public void run() throws HiveException
+            {
+                doUpdate(spec);
+            }
+        });
+    }
+
+    private void doUpdate(UpdateItemSpec spec) throws HiveException
+    {
+        for (int attempt = 0; ; attempt++) {
+            throttle();
+
+            try {
+                UpdateItemOutcome outcome = ddbTable.updateItem(spec);
+                recordWrite(1, outcome.getUpdateItemResult().getConsumedCapacity().getCapacityUnits());
+                applyRate(adaptiveRate.onSuccess());
+                return;
+            }
+            catch (ProvisionedThroughputExceededException e) {
+                onThrottled(attempt, "update of key " + spec.getKeyComponents());
+            }
+            catch (AmazonServiceException e) {
+                LOG.error(String.format("update failed on key (%s): %s",
+                        spec.getKeyComponents(), spec.getAttributeUpdate()));
+                throw new HiveException(e);
+            }
+        }
+    }
+
+    /**
+     * Buffers a full item write, sent with BatchWriteItem once BATCH_SIZE items are pending.
+     * The item replaces any existing item with the same key.
+     */
+    public void put(Item item) throws HiveException
+    {
+        List<Object> key = new ArrayList<Object>(keyNames.size());
+        for (String keyName : keyNames) {
+            key.add(item.get(keyName));
+        }
+        Stripe stripe = stripeOf(key);
+
+        // a batch must not contain the same key twice
+        if (!stripe.pendingKeys.add(key)) {
+            flush(stripe);
+            stripe.pendingKeys.add(key);
+        }
+
+        stripe.pendingPuts.add(new WriteRequest(new PutRequest(InternalUtils.toAttributeValues(item))));
+        if (stripe.pendingPuts.size() >= BATCH_SIZE) {
+            flush(stripe);
+        }
+    }
+
+    /**
+     * Sends all buffered items and coalesced updates.
+     */
+    public void flush() throws HiveException
+    {
+        if (coalescer != null) {
+            for (CoalescingBuffer.Pending pending : coalescer.drain()) {
+                update(newUpdateItemSpec(pending.key, pending.getUpdates()));
+            }
+        }
+        for (Stripe stripe : stripes) {
+            flush(stripe);
+        }
+    }
+
+    private void flush(Stripe stripe) throws HiveException
+    {
+        if (stripe.pendingPuts.isEmpty()) {
+            return;
+        }
+
+        final Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
+        requestItems.put(tableName, new ArrayList<WriteRequest>(stripe.pendingPuts));
+        stripe.pendingPuts.clear();
+        stripe.pendingKeys.clear();
+
+        execute(stripe, new Write()
+        {
+            @Override
+            public void run() throws HiveException
+            {
+                writeBatch(requestItems);
+            }
+        });
+    }
+
+    /**
+     * Writes one batch, retrying throttled requests and unprocessed items.
+     */
+    private void writeBatch(Map<String, List<WriteRequest>> requestItems) throws HiveException
+    {
+        int items = requestItems.get(tableName).size();
+
+        for (int attempt = 0; ; attempt++) {
+            throttle();
+
+            BatchWriteItemResult result;
+            try {
+                result = ddbClient.batchWriteItem(new BatchWriteItemRequest()
+                        .withRequestItems(requestItems)
+                        .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+            }
+            catch (ProvisionedThroughputExceededException e) {
+                onThrottled(attempt, String.format("batch write of %d items", items));
+                continue;
+            }
+            catch (AmazonServiceException e) {
+                LOG.error(String.format("batch write of %d items failed", items));
+                throw new HiveException(e);
+            }
+
+            double capacity = 0;
+            if (result.getConsumedCapacity() != null) {
+                for (ConsumedCapacity consumed : result.getConsumedCapacity()) {
+                    capacity += consumed.getCapacityUnits();
+                }
+            }
+
+            Map<String, List<WriteRequest>> unprocessed = result.getUnprocessedItems();
+            int remaining = (unprocessed == null || !unprocessed.containsKey(tableName)) ? 0
+                    : unprocessed.get(tableName).size();
+            recordWrite(items - remaining, capacity);
+            if (remaining == 0) {
+                applyRate(adaptiveRate.onSuccess());
+                return;
+            }
+
+            // unprocessed items are DynamoDB throttling part of the batch
+            onThrottled(attempt, String.format("batch write of %d items", remaining));
+            requestItems = unprocessed;
+            items = remaining;
+        }
+    }
+
+    /**
+     * Flushes buffered items and waits for every queued write to finish.
+     */
+    public void close() throws HiveException
+    {
+        try {
+            flush();
+        }
+        finally {
+            for (Stripe stripe : stripes) {
+                if (stripe.writer != null) {
+                    stripe.writer.shutdown();
+                }
+            }
+            if (coordinator != null) {
+                coordinator.close();
+            }
+            Reporter reporter = getReporter();
+            if (coalescer != null && reporter != null) {
+                reporter.incrCounter(COUNTER_GROUP, "ddb_update coalesced updates", coalescer.getMerged());
+            }
+        }
+
+        try {
+            for (Stripe stripe : stripes) {
+                if (stripe.writer != null) {
+                    while (!stripe.writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                        LOG.info("waiting for queued writes to " + tableName);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HiveException(e);
         }
+        checkAsyncError();
     }
 
-    public long getUpdateCounter()
+    public synchronized long getUpdateCounter()
     {
         return updateCounter;
     }
 
-    public double getConsumedCapacityCounter()
+    public synchronized double getConsumedCapacityCounter()
     {
         return consumedCapacityCounter;
     }
@@ -0,0 +1,91 @@
+package spanner.monkey.hive.dynamodb;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Counts the live writers of a table through a directory on HDFS.
+ * Every writer keeps a heartbeat file in the directory, touched on each
+ * refresh and deleted on close, so the table budget can be split among the
+ * writers still running instead of among all reduce tasks of the job.
+ * Files not touched for three intervals are ignored (crashed attempts).
+ */
+public class WriterCoordinator
+{
+    public static final String CONF_COORDINATION_DIR = "ddb_update.coordination.dir";
+    public static final String CONF_COORDINATION_INTERVAL = "ddb_update.coordination.interval.seconds";
+    public static final long DEFAULT_COORDINATION_INTERVAL = 30;
+
+    private static final Log LOG = LogFactory.getLog(WriterCoordinator.class.getName());
+
+    private final FileSystem fs;
+    private final Path dir;
+    private final Path self;
+    private final long intervalMillis;
+    private long nextRefresh;
+    private int liveWriters;
+
+    public WriterCoordinator(JobConf jobConf, String tableName, int initialWriters) throws IOException
+    {
+        this.dir = new Path(jobConf.get(CONF_COORDINATION_DIR), tableName);
+        this.fs = dir.getFileSystem(jobConf);
+        this.intervalMillis = jobConf.getLong(CONF_COORDINATION_INTERVAL, DEFAULT_COORDINATION_INTERVAL) * 1000;
+
+        String attempt = jobConf.get("mapreduce.task.attempt.id", jobConf.get("mapred.task.id"));
+        this.self = new Path(dir, (attempt != null) ? attempt : UUID.randomUUID().toString());
+        fs.create(self, true).close();
+
+        // the first listing waits one interval, until the other writers had a chance to register
+        this.liveWriters = Math.max(1, initialWriters);
+        this.nextRefresh = System.currentTimeMillis() + intervalMillis;
+    }
+
+    /**
+     * Returns the number of live writers, listing the directory at most once per interval.
+     */
+    public synchronized int getLiveWriters()
+    {
+        long now = System.currentTimeMillis();
+        if (now < nextRefresh) {
+            return liveWriters;
+        }
+        nextRefresh = now + intervalMillis;
+
+        try {
+            fs.setTimes(self, now, -1);
+
+            int live = 0;
+            for (FileStatus status : fs.listStatus(dir)) {
+                if (status.getPath().getName().equals(self.getName())
+                        || status.getModificationTime() > now - 3 * intervalMillis) {
+                    live++;
+                }
+            }
+            if (live != liveWriters) {
+                LOG.info(String.format("%d live writers found in %s", live, dir));
+            }
+            liveWriters = Math.max(1, live);
+        }
+        catch (IOException e) {
+            LOG.warn("Failed to refresh writers in " + dir + ", keeping " + liveWriters, e);
+        }
+        return liveWriters;
+    }
+
+    public synchronized void close()
+    {
+        try {
+            fs.delete(self, false);
+        }
+        catch (IOException e) {
+            LOG.warn("Failed to delete " + self, e);
+        }
+    }
+}
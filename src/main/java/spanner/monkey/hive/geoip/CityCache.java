@@ -0,0 +1,49 @@
+package spanner.monkey.hive.geoip;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of city lookups, keyed by IP. Only the projected property
+ * values are kept (see {@link CityProperty#project}), a few hundred bytes per
+ * IP, rather than the decoded response with all its localized names.
+ * Addresses missing from the database are cached too, as {@link #NOT_FOUND}.
+ */
+public class CityCache
+{
+    public static final Object NOT_FOUND = new Object();
+
+    private final int capacity;
+    private final LinkedHashMap<Object, Object> map;
+
+    public CityCache(final int capacity)
+    {
+        this.capacity = capacity;
+        this.map = new LinkedHashMap<Object, Object>(Math.min(capacity, 1 << 16) * 2, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest)
+            {
+                return size() > CityCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached property values, {@link #NOT_FOUND}, or null on a miss.
+     */
+    public synchronized Object get(Object ip)
+    {
+        return map.get(ip);
+    }
+
+    public synchronized void put(Object ip, Object[] values)
+    {
+        map.put(ip, (values == null) ? NOT_FOUND : values);
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+}
@@ -0,0 +1,103 @@
+package spanner.monkey.hive.geoip;
+
+import com.maxmind.geoip2.DatabaseReader;
+import com.maxmind.geoip2.exception.AddressNotFoundException;
+import com.maxmind.geoip2.exception.GeoIp2Exception;
+import com.maxmind.geoip2.model.CityResponse;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Reporter;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * City lookups of one UDF instance against a shared database reader and
+ * its shared LRU cache.
+ */
+public class CityLookup
+{
+    // each cached IP costs a few hundred bytes of heap, json is never cached
+    public static final String CONF_CACHE_SIZE = "geoip.cache.size";
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+    public static final String COUNTER_GROUP = "monkey-spanner";
+
+    private final DatabaseReader reader;
+    private final CityCache cache;
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+
+    public CityLookup(String database, Configuration conf) throws IOException
+    {
+        reader = DatabaseRegistry.acquire(database, conf);
+        int cacheSize = conf.getInt(CONF_CACHE_SIZE, DEFAULT_CACHE_SIZE);
+        cache = (cacheSize > 0) ? DatabaseRegistry.getCache(reader, cacheSize) : null;
+    }
+
+    /**
+     * IPv4 addresses become a Long holding the unsigned 32-bit address, IPv6
+     * literals stay a String. Returns null for anything else, so malformed
+     * input never reaches InetAddress.getByName and its DNS lookup.
+     */
+    public static Object toIpKey(Object ip, PrimitiveObjectInspector oi)
+    {
+        if (ip == null) {
+            return null;
+        }
+        if (oi instanceof LongObjectInspector) {
+            return IPv4.fromLong(((LongObjectInspector) oi).get(ip));
+        }
+
+        Text text = ((StringObjectInspector) oi).getPrimitiveWritableObject(ip);
+        long ipv4 = IPv4.parse(text);
+        if (ipv4 != IPv4.INVALID) {
+            return ipv4;
+        }
+        return IPv4.isIPv6Literal(text) ? text.toString() : null;
+    }
+
+    /**
+     * Returns the property values of an IP key indexed by CityProperty.ordinal(),
+     * null when the database does not know it. JSON is only filled in when asked
+     * for, and such lookups bypass the cache since the JSON is as large as the
+     * decoded response.
+     */
+    public Object[] lookup(Object ip, boolean json) throws IOException, GeoIp2Exception
+    {
+        CityCache cache = json ? null : this.cache;
+        if (cache != null) {
+            Object cached = cache.get(ip);
+            if (cached != null) {
+                cacheHits++;
+                return (cached == CityCache.NOT_FOUND) ? null : (Object[]) cached;
+            }
+            cacheMisses++;
+        }
+
+        Object[] ret;
+        try {
+            CityResponse response = reader.city((ip instanceof Long) ? IPv4.toInetAddress((Long) ip)
+                    : InetAddress.getByName((String) ip));
+            ret = CityProperty.project(response, json);
+        }
+        catch (AddressNotFoundException e) {
+            ret = null;
+        }
+        if (cache != null) {
+            cache.put(ip, ret);
+        }
+        return ret;
+    }
+
+    public void close(Reporter reporter)
+    {
+        if (reporter != null && cache != null) {
+            reporter.incrCounter(COUNTER_GROUP, "geoip cache hits", cacheHits);
+            reporter.incrCounter(COUNTER_GROUP, "geoip cache misses", cacheMisses);
+        }
+        DatabaseRegistry.release(reader);
+    }
+}
@@ -0,0 +1,137 @@
+package spanner.monkey.hive.geoip;
+
+import com.maxmind.geoip2.model.CityResponse;
+import com.maxmind.geoip2.record.Location;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Properties that can be extracted from a city lookup.
+ * LATITUDE and LONGITUDE are doubles, everything else is a string.
+ */
+public enum CityProperty
+{
+    JSON {
+        @Override
+        public Object get(CityResponse r) throws IOException
+        {
+            return r.toJson();
+        }
+    },
+    COUNTRY {
+        @Override
+        public Object get(CityResponse r)
+        {
+            return r.getCountry().getName();
+        }
+    },
+    COUNTRY_CODE {
+        @Override
+        public Object get(CityResponse r)
+        {
+            return r.getCountry().getIsoCode();
+        }
+    },
+    CITY {
+        @Override
+        public Object get(CityResponse r)
+        {
+            return r.getCity().getName();
+        }
+    },
+    LOCATION {
+        @Override
+        public Object get(CityResponse r)
+        {
+            Location location = r.getLocation();
+            return location.getLatitude() + ":" + location.getLongitude();
+        }
+    },
+    LATITUDE {
+        @Override
+        public Object get(CityResponse r)
+        {
+            return r.getLocation().getLatitude();
+        }
+    },
+    LONGITUDE {
+        @Override
+        public Object get(CityResponse r)
+        {
+            return r.getLocation().getLongitude();
+        }
+    },
+    TIMEZONE {
+        @Override
+        public Object get(CityResponse r)
+        {
+            return r.getLocation().getTimeZone();
+        }
+    },
+    POSTAL_CODE {
+        @Override
+        public Object get(CityResponse r)
+        {
+            return r.getPostal().getCode();
+        }
+    },
+    SUBDIVISION {
+        @Override
+        public Object get(CityResponse r)
+        {
+            return r.getMostSpecificSubdivision().getName();
+        }
+    },
+    SUBDIVISION_CODE {
+        @Override
+        public Object get(CityResponse r)
+        {
+            return r.getMostSpecificSubdivision().getIsoCode();
+        }
+    };
+
+    public abstract Object get(CityResponse r) throws IOException;
+
+    /**
+     * Extracts every property of the response into an array indexed by
+     * ordinal(). JSON is only rendered when asked for, being by far the largest.
+     */
+    public static Object[] project(CityResponse r, boolean json) throws IOException
+    {
+        CityProperty[] all = values();
+        Object[] ret = new Object[all.length];
+        for (CityProperty property : all) {
+            if (property != JSON || json) {
+                ret[property.ordinal()] = property.get(r);
+            }
+        }
+        return ret;
+    }
+
+    public boolean isDouble()
+    {
+        return this == LATITUDE || this == LONGITUDE;
+    }
+
+    /**
+     * Compiles a comma separated, case insensitive property list.
+     * Unknown properties are kept as null entries.
+     */
+    public static CityProperty[] compile(String properties)
+    {
+        List<CityProperty> ret = new ArrayList<CityProperty>();
+        for (String p : properties.toUpperCase().split(",")) {
+            CityProperty property = null;
+            try {
+                property = CityProperty.valueOf(p);
+            }
+            catch (IllegalArgumentException e) {
+                // unknown property, rendered as "null"
+            }
+            ret.add(property);
+        }
+        return ret.toArray(new CityProperty[ret.size()]);
+    }
+}
@@ -0,0 +1,438 @@
+package spanner.monkey.hive.geoip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flat IPv4 range table of country ISO codes compiled from a MaxMind DB file.
+ * The search tree of the database is walked once, adjacent networks of the
+ * same country are merged, and lookups become a binary search over a sorted
+ * int[] of range starts with a parallel short[] of country ids.
+ */
+public class CountryTable
+{
+    private static final byte[] METADATA_MARKER = new byte[]{
+            (byte) 0xab, (byte) 0xcd, (byte) 0xef, 'M', 'a', 'x', 'M', 'i', 'n', 'd', '.', 'c', 'o', 'm'};
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final short NO_COUNTRY = -1;
+
+    // range starts with the sign bit flipped, so signed order is unsigned address order
+    private final int[] starts;
+    private final short[] countries;
+    private final String[] codes;
+
+    private CountryTable(int[] starts, short[] countries, String[] codes)
+    {
+        this.starts = starts;
+        this.countries = countries;
+        this.codes = codes;
+    }
+
+    /**
+     * Returns the country ISO code of an unsigned 32-bit address, null if unknown.
+     */
+    public String lookup(long ip)
+    {
+        int i = Arrays.binarySearch(starts, (int) ip ^ Integer.MIN_VALUE);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        if (i < 0 || countries[i] == NO_COUNTRY) {
+            return null;
+        }
+        return codes[countries[i]];
+    }
+
+    public int size()
+    {
+        return starts.length;
+    }
+
+    public static CountryTable compile(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new Compiler(buffer).compile();
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Minimal reader of the MaxMind DB format: the metadata map, the search
+     * tree records and just enough of the data section to find country.iso_code.
+     */
+    private static class Compiler
+    {
+        private final ByteBuffer buffer;
+        private int nodeCount;
+        private int recordSize;
+        private int ipVersion;
+        private int dataStart;
+
+        private final Map<Integer, Short> countryByRecord = new HashMap<Integer, Short>();
+        private final Map<String, Short> idByCode = new HashMap<String, Short>();
+        private final List<String> codes = new ArrayList<String>();
+
+        private int[] starts = new int[1024];
+        private short[] countries = new short[1024];
+        private int size = 0;
+
+        // decoder position
+        private int pos;
+
+        Compiler(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        CountryTable compile() throws IOException
+        {
+            readMetadata();
+            dataStart = nodeCount * recordSize / 4 + 16;
+
+            int node = 0;
+            if (ipVersion == 6) {
+                // IPv4 addresses live in the ::/96 subtree
+                for (int depth = 0; depth < 96 && node < nodeCount; depth++) {
+                    node = readRecord(node, 0);
+                }
+            }
+            if (node < nodeCount) {
+                walk(node, 0, 0);
+            }
+            else {
+                add(0, countryOf(node));
+            }
+
+            return new CountryTable(Arrays.copyOf(starts, size), Arrays.copyOf(countries, size),
+                    codes.toArray(new String[codes.size()]));
+        }
+
+        private void walk(int node, int depth, long prefix) throws IOException
+        {
+            for (int bit = 0; bit < 2; bit++) {
+                long start = prefix | ((long) bit << (31 - depth));
+                int record = readRecord(node, bit);
+                if (record < nodeCount && depth < 31) {
+                    walk(record, depth + 1, start);
+                }
+                else {
+                    add(start, countryOf(record));
+                }
+            }
+        }
+
+        private void add(long start, short country)
+        {
+            if (size > 0 && countries[size - 1] == country) {
+                return;
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                countries = Arrays.copyOf(countries, size * 2);
+            }
+            starts[size] = (int) start ^ Integer.MIN_VALUE;
+            countries[size] = country;
+            size++;
+        }
+
+        private int readRecord(int node, int bit)
+        {
+            switch (recordSize) {
+                case 24: {
+                    int offset = node * 6 + bit * 3;
+                    return readInt(offset, 3);
+                }
+                case 28: {
+                    int offset = node * 7;
+                    int middle = buffer.get(offset + 3) & 0xff;
+                    if (bit == 0) {
+                        return ((middle & 0xf0) << 20) | readInt(offset, 3);
+                    }
+                    return ((middle & 0x0f) << 24) | readInt(offset + 4, 3);
+                }
+                case 32: {
+                    int offset = node * 8 + bit * 4;
+                    return readInt(offset, 4);
+                }
+                default:
+                    throw new IllegalStateException("Unsupported record size " + recordSize);
+            }
+        }
+
+        private short countryOf(int record) throws IOException
+        {
+            if (record <= nodeCount) {
+                return NO_COUNTRY;
+            }
+            Short id = countryByRecord.get(record);
+            if (id == null) {
+                String code = readCountryCode(dataStart + (record - nodeCount - 16));
+                if (code == null) {
+                    id = NO_COUNTRY;
+                }
+                else {
+                    id = idByCode.get(code);
+                    if (id == null) {
+                        id = (short) codes.size();
+                        codes.add(code);
+                        idByCode.put(code, id);
+                    }
+                }
+                countryByRecord.put(record, id);
+            }
+            return id;
+        }
+
+        private String readCountryCode(int offset) throws IOException
+        {
+            pos = offset;
+            if (!seekKey("country")) {
+                return null;
+            }
+            if (!seekKey("iso_code")) {
+                return null;
+            }
+            Object code = readValue();
+            return (code instanceof String) ? (String) code : null;
+        }
+
+        /**
+         * Expects a map at the current position and leaves the position at
+         * the value of the key, following a pointer to the map if needed.
+         */
+        private boolean seekKey(String key) throws IOException
+        {
+            int ctrl = buffer.get(pos++) & 0xff;
+            int type = readType(ctrl);
+            if (type == 1) {
+                pos = readPointer(ctrl);
+                ctrl = buffer.get(pos++) & 0xff;
+                type = readType(ctrl);
+            }
+            if (type != 7) {
+                return false;
+            }
+            int entries = readSize(ctrl);
+            for (int i = 0; i < entries; i++) {
+                if (key.equals(readValue())) {
+                    return true;
+                }
+                skipValue();
+            }
+            return false;
+        }
+
+        private void readMetadata() throws IOException
+        {
+            int marker = lastIndexOf(METADATA_MARKER);
+            if (marker < 0) {
+                throw new IOException("Not a MaxMind DB file, metadata marker not found");
+            }
+            pos = marker + METADATA_MARKER.length;
+
+            int ctrl = buffer.get(pos++) & 0xff;
+            if (readType(ctrl) != 7) {
+                throw new IOException("Invalid MaxMind DB metadata");
+            }
+            int entries = readSize(ctrl);
+            for (int i = 0; i < entries; i++) {
+                Object key = readValue();
+                if ("node_count".equals(key)) {
+                    nodeCount = ((Number) readValue()).intValue();
+                }
+                else if ("record_size".equals(key)) {
+                    recordSize = ((Number) readValue()).intValue();
+                }
+                else if ("ip_version".equals(key)) {
+                    ipVersion = ((Number) readValue()).intValue();
+                }
+                else {
+                    skipValue();
+                }
+            }
+            if (nodeCount <= 0 || recordSize == 0) {
+                throw new IOException("Invalid MaxMind DB metadata");
+            }
+        }
+
+        private int lastIndexOf(byte[] pattern)
+        {
+            outer:
+            for (int i = buffer.limit() - pattern.length; i >= 0; i--) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (buffer.get(i + j) != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Reads a string or an unsigned integer, skipping anything else.
+         * A pointer is followed and the position continues after it.
+         */
+        private Object readValue() throws IOException
+        {
+            int ctrl = buffer.get(pos++) & 0xff;
+            int type = readType(ctrl);
+            if (type == 1) {
+                int target = readPointer(ctrl);
+                int next = pos;
+                pos = target;
+                Object value = readValue();
+                pos = next;
+                return value;
+            }
+
+            int size = readSize(ctrl);
+            switch (type) {
+                case 2: {
+                    byte[] bytes = new byte[size];
+                    for (int i = 0; i < size; i++) {
+                        bytes[i] = buffer.get(pos + i);
+                    }
+                    pos += size;
+                    return new String(bytes, UTF8);
+                }
+                case 5:
+                case 6:
+                case 9: {
+                    long value = 0;
+                    for (int i = 0; i < size; i++) {
+                        value = (value << 8) | (buffer.get(pos + i) & 0xff);
+                    }
+                    pos += size;
+                    return value;
+                }
+                default:
+                    skipPayload(type, size);
+                    return null;
+            }
+        }
+
+        private void skipValue() throws IOException
+        {
+            int ctrl = buffer.get(pos++) & 0xff;
+            int type = readType(ctrl);
+            if (type == 1) {
+                readPointer(ctrl);
+                return;
+            }
+            skipPayload(type, readSize(ctrl));
+        }
+
+        private void skipPayload(int type, int size) throws IOException
+        {
+            switch (type) {
+                case 3:
+                    pos += 8;
+                    break;
+                case 15:
+                    pos += 4;
+                    break;
+                case 14:
+                    break;
+                case 7:
+                    for (int i = 0; i < size * 2; i++) {
+                        skipValue();
+                    }
+                    break;
+                case 11:
+                    for (int i = 0; i < size; i++) {
+                        skipValue();
+                    }
+                    break;
+                case 2:
+                case 4:
+                case 5:
+                case 6:
+                case 8:
+                case 9:
+                case 10:
+                    pos += size;
+                    break;
+                default:
+                    throw new IOException("Unexpected MaxMind DB data type " + type);
+            }
+        }
+
+        private int readType(int ctrl)
+        {
+            int type = ctrl >>> 5;
+            if (type == 0) {
+                type = 7 + (buffer.get(pos++) & 0xff);
+            }
+            return type;
+        }
+
+        private int readSize(int ctrl)
+        {
+            int size = ctrl & 0x1f;
+            switch (size) {
+                case 29:
+                    size = 29 + (buffer.get(pos) & 0xff);
+                    pos += 1;
+                    break;
+                case 30:
+                    size = 285 + readInt(pos, 2);
+                    pos += 2;
+                    break;
+                case 31:
+                    size = 65821 + readInt(pos, 3);
+                    pos += 3;
+                    break;
+                default:
+            }
+            return size;
+        }
+
+        /**
+         * Returns the absolute offset of a data section pointer.
+         */
+        private int readPointer(int ctrl)
+        {
+            int length = ((ctrl >>> 3) & 0x3) + 1;
+            int high = ctrl & 0x7;
+            int pointer;
+            switch (length) {
+                case 1:
+                    pointer = (high << 8) | readInt(pos, 1);
+                    break;
+                case 2:
+                    pointer = ((high << 16) | readInt(pos, 2)) + 2048;
+                    break;
+                case 3:
+                    pointer = ((high << 24) | readInt(pos, 3)) + 526336;
+                    break;
+                default:
+                    pointer = readInt(pos, 4);
+            }
+            pos += length;
+            return dataStart + pointer;
+        }
+
+        private int readInt(int offset, int length)
+        {
+            int value = 0;
+            for (int i = 0; i < length; i++) {
+                value = (value << 8) | (buffer.get(offset + i) & 0xff);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package spanner.monkey.hive.geoip;
+
+import com.maxmind.db.Reader.FileMode;
+import com.maxmind.geoip2.DatabaseReader;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Per-JVM registry of memory-mapped GeoIP databases.
+ * Every UDF instance of a task JVM that asks for the same file (same path and
+ * modification time) shares one DatabaseReader and thus one off-heap mapping.
+ * Readers are reference counted and closed when the last user releases them.
+ */
+public class DatabaseRegistry
+{
+    private static final Log LOG = LogFactory.getLog(DatabaseRegistry.class.getName());
+
+    private static class Entry
+    {
+        final String key;
+        final DatabaseReader reader;
+        CityCache cache;
+        int refs = 0;
+
+        Entry(String key, DatabaseReader reader)
+        {
+            this.key = key;
+            this.reader = reader;
+        }
+    }
+
+    private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private static final Map<DatabaseReader, Entry> byReader = new IdentityHashMap<DatabaseReader, Entry>();
+    private static final Map<String, CountryTable> countryTables = new HashMap<String, CountryTable>();
+
+    private DatabaseRegistry()
+    {
+    }
+
+    /**
+     * Returns the shared reader of the database, opening it on first use.
+     * Each call must be paired with a {@link #release(DatabaseReader)}.
+     */
+    public static synchronized DatabaseReader acquire(String database, Configuration conf) throws IOException
+    {
+        File file = resolve(database, conf);
+        String key = file.getCanonicalPath() + "@" + file.lastModified();
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            LOG.info(String.format("Memory mapping GeoIP database %s (%d bytes)", file, file.length()));
+            DatabaseReader reader = new DatabaseReader.Builder(file).fileMode(FileMode.MEMORY_MAPPED).build();
+            entry = new Entry(key, reader);
+            entries.put(key, entry);
+            byReader.put(reader, entry);
+        }
+        entry.refs++;
+        return entry.reader;
+    }
+
+    /**
+     * Returns the lookup cache shared by all users of the reader.
+     * The first caller decides its capacity.
+     */
+    public static synchronized CityCache getCache(DatabaseReader reader, int capacity)
+    {
+        Entry entry = byReader.get(reader);
+        if (entry == null) {
+            return new CityCache(capacity);
+        }
+        if (entry.cache == null) {
+            entry.cache = new CityCache(capacity);
+        }
+        return entry.cache;
+    }
+
+    /**
+     * Returns the country range table of the database, compiling it on first use.
+     * Tables are plain heap arrays and stay for the lifetime of the JVM.
+     */
+    public static synchronized CountryTable getCountryTable(String database, Configuration conf) throws IOException
+    {
+        File file = resolve(database, conf);
+        String key = file.getCanonicalPath() + "@" + file.lastModified();
+
+        CountryTable table = countryTables.get(key);
+        if (table == null) {
+            long start = System.currentTimeMillis();
+            table = CountryTable.compile(file);
+            LOG.info(String.format("Compiled GeoIP database %s into %d country ranges in %d ms",
+                    file, table.size(), System.currentTimeMillis() - start));
+            countryTables.put(key, table);
+        }
+        return table;
+    }
+
+    public static synchronized void release(DatabaseReader reader)
+    {
+        Entry entry = byReader.get(reader);
+        if (entry == null || --entry.refs > 0) {
+            return;
+        }
+
+        entries.remove(entry.key);
+        byReader.remove(reader);
+        try {
+            reader.close();
+        }
+        catch (IOException e) {
+            LOG.warn("Failed to close GeoIP database " + entry.key, e);
+        }
+    }
+
+    /**
+     * Finds a local copy of the database:
+     * a local path is used as is, a file shipped through the distributed cache
+     * (add file / -files) is picked from the task's working directory, and any
+     * other Hadoop path (hdfs://, s3n://, ...) is copied once to java.io.tmpdir.
+     */
+    public static File resolve(String database, Configuration conf) throws IOException
+    {
+        File local = new File(database);
+        if (local.isFile()) {
+            return local;
+        }
+
+        Path path = new Path(database);
+        File cached = new File(path.getName());
+        if (cached.isFile()) {
+            return cached;
+        }
+
+        FileSystem fs = path.getFileSystem(conf);
+        FileStatus status = fs.getFileStatus(path);
+        File copy = new File(System.getProperty("java.io.tmpdir"),
+                "geoip-" + status.getModificationTime() + "-" + path.getName());
+        if (!copy.isFile() || copy.length() != status.getLen()) {
+            LOG.info(String.format("Copying GeoIP database %s to %s", path, copy));
+            File tmp = new File(copy.getPath() + ".tmp");
+            fs.copyToLocalFile(false, path, new Path(tmp.getAbsolutePath()), true);
+            if (!tmp.renameTo(copy)) {
+                throw new IOException("Failed to move " + tmp + " to " + copy);
+            }
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,105 @@
+package spanner.monkey.hive.geoip;
+
+import org.apache.hadoop.io.Text;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * IPv4 addresses as unsigned 32-bit values held in a long.
+ * Parsing works on the raw bytes and never involves a String or DNS.
+ */
+public final class IPv4
+{
+    public static final long INVALID = -1L;
+
+    private IPv4()
+    {
+    }
+
+    /**
+     * Parses a dotted-quad address, INVALID if the bytes are not one.
+     */
+    public static long parse(byte[] bytes, int start, int length)
+    {
+        long ip = 0;
+        int octets = 0;
+        int value = 0;
+        int digits = 0;
+
+        for (int i = start; i < start + length; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                if (++digits > 3 || value > 255) {
+                    return INVALID;
+                }
+            }
+            else if (b == '.' && digits > 0 && octets < 3) {
+                ip = (ip << 8) | value;
+                octets++;
+                value = 0;
+                digits = 0;
+            }
+            else {
+                return INVALID;
+            }
+        }
+
+        if (octets != 3 || digits == 0) {
+            return INVALID;
+        }
+        return (ip << 8) | value;
+    }
+
+    public static long parse(Text text)
+    {
+        return parse(text.getBytes(), 0, text.getLength());
+    }
+
+    /**
+     * Keeps the low 32 bits of a numeric address, as longToIp used to.
+     */
+    public static long fromLong(long ip)
+    {
+        return ip & 0xffffffffL;
+    }
+
+    public static InetAddress toInetAddress(long ip)
+    {
+        byte[] address = new byte[]{(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+        try {
+            return InetAddress.getByAddress(address);
+        }
+        catch (UnknownHostException e) {
+            // only thrown for an illegal address length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Whether the bytes look like an IPv6 literal: only hex digits, ':' and '.'
+     * (for an embedded IPv4 address), with at least one ':' and a hex digit or
+     * ':' first. InetAddress parses such a string as a literal and fails
+     * rather than falling back to DNS.
+     */
+    public static boolean isIPv6Literal(Text text)
+    {
+        byte[] bytes = text.getBytes();
+        int length = text.getLength();
+        if (length == 0 || (bytes[0] != ':' && Character.digit(bytes[0], 16) < 0)) {
+            return false;
+        }
+        boolean colon = false;
+        for (int i = 0; i < length; i++) {
+            byte b = bytes[i];
+            if (b == ':') {
+                colon = true;
+            }
+            else if (b != '.' && Character.digit(b, 16) < 0) {
+                return false;
+            }
+        }
+        return colon;
+    }
+}
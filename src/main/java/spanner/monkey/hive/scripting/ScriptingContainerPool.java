@@ -0,0 +1,238 @@
+package spanner.monkey.hive.scripting;
+
+import com.google.common.base.Objects;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.jruby.RubyInstanceConfig.CompileMode;
+import org.jruby.embed.AttributeName;
+import org.jruby.embed.EmbedEvalUnit;
+import org.jruby.embed.LocalContextScope;
+import org.jruby.embed.ScriptingContainer;
+import org.jruby.javasupport.JavaEmbedUtils;
+import org.jruby.util.KCode;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Per-JVM pool of JRuby ScriptingContainers, keyed by load path and settings.
+ * A container is checked out by one UDF instance at a time, since scriptlets
+ * define top-level methods, and is handed back in close() to be reused by the
+ * next instance. With JVM reuse, only the first task of a JVM boots runtimes.
+ * Outside a task, e.g. a fetch task run by the client, close() is never
+ * called, so containers are not pooled there and go away with their UDF.
+ * At most MAX_IDLE_PER_KEY idle containers are kept per settings, the
+ * least recently used ones beyond that are terminated.
+ * <p>
+ * Each container also remembers the last scriptlet it parsed, and acquiring
+ * a container for a scriptlet prefers one that already holds it, so a
+ * scriptlet is compiled once per JVM rather than once per UDF instance. The
+ * compiled unit is still run by every instance, so top-level state of the
+ * scriptlet is set up afresh. Only the last one is kept because running a
+ * scriptlet may redefine the top-level methods of the previous one.
+ */
+public class ScriptingContainerPool
+{
+    public static final String CONF_LOAD_PATH = "jruby.load_path";
+    public static final int MAX_IDLE_PER_KEY = 4;
+
+    private static final Log LOG = LogFactory.getLog(ScriptingContainerPool.class.getName());
+
+    private static class Key
+    {
+        final String loadPath;
+        final CompileMode compileMode;
+        final boolean sharingVariables;
+
+        Key(String loadPath, CompileMode compileMode, boolean sharingVariables)
+        {
+            this.loadPath = loadPath;
+            this.compileMode = compileMode;
+            this.sharingVariables = sharingVariables;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equal(loadPath, other.loadPath) && compileMode == other.compileMode
+                    && sharingVariables == other.sharingVariables;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(loadPath, compileMode, sharingVariables);
+        }
+    }
+
+    private static final Map<Key, Deque<ScriptingContainer>> idle = new HashMap<Key, Deque<ScriptingContainer>>();
+    private static final Map<ScriptingContainer, Key> checkedOut = new IdentityHashMap<ScriptingContainer, Key>();
+    private static final Map<ScriptingContainer, Compiled> compiled = new IdentityHashMap<ScriptingContainer, Compiled>();
+
+    private static class Compiled
+    {
+        final String scriptlet;
+        final EmbedEvalUnit unit;
+
+        Compiled(String scriptlet, EmbedEvalUnit unit)
+        {
+            this.scriptlet = scriptlet;
+            this.unit = unit;
+        }
+    }
+
+    private static String defaultLoadPath;
+    private static boolean defaultLoadPathRead = false;
+
+    private ScriptingContainerPool()
+    {
+    }
+
+    /**
+     * The load path of the session, read once per JVM, for UDFs that never got a job conf.
+     */
+    public static synchronized String getDefaultLoadPath()
+    {
+        if (!defaultLoadPathRead) {
+            defaultLoadPath = new HiveConf().get(CONF_LOAD_PATH);
+            defaultLoadPathRead = true;
+        }
+        return defaultLoadPath;
+    }
+
+    public static ScriptingContainer acquire(String loadPath, CompileMode compileMode, boolean sharingVariables)
+    {
+        return acquire(loadPath, compileMode, sharingVariables, null);
+    }
+
+    /**
+     * Checks out an idle container with these settings, one that holds the
+     * scriptlet if possible, or boots a new one. Outside a task the container
+     * is a private one which is not tracked by the pool.
+     * Variables are shared between Java and Ruby unless sharingVariables is false.
+     */
+    public static ScriptingContainer acquire(String loadPath, CompileMode compileMode, boolean sharingVariables,
+            String scriptlet)
+    {
+        boolean pooled = MapredContext.get() != null;
+        Key key = new Key(loadPath, compileMode, sharingVariables);
+        synchronized (ScriptingContainerPool.class) {
+            Deque<ScriptingContainer> containers = idle.get(key);
+            if (pooled && containers != null && !containers.isEmpty()) {
+                ScriptingContainer container = null;
+                if (scriptlet != null) {
+                    for (Iterator<ScriptingContainer> it = containers.iterator(); it.hasNext(); ) {
+                        ScriptingContainer candidate = it.next();
+                        Compiled holding = compiled.get(candidate);
+                        if (holding != null && holding.scriptlet.equals(scriptlet)) {
+                            it.remove();
+                            container = candidate;
+                            break;
+                        }
+                    }
+                }
+                if (container == null) {
+                    container = containers.pop();
+                }
+                checkedOut.put(container, key);
+                return container;
+            }
+        }
+
+        // booting takes seconds, don't hold the pool meanwhile
+        long start = System.currentTimeMillis();
+        System.setProperty("jruby.compile.invokedynamic", "true");
+        // a runtime per container, so scriptlets of different UDF instances can't see each other
+        ScriptingContainer container = new ScriptingContainer(LocalContextScope.SINGLETHREAD);
+        container.setKCode(KCode.UTF8);
+        container.setAttribute(AttributeName.SHARING_VARIABLES, sharingVariables);
+        container.setCompileMode(compileMode);
+        if (loadPath != null) {
+            container.getLoadPaths().add(loadPath);
+        }
+        // boot now rather than on the first row
+        container.getProvider().getRuntime();
+        LOG.info(String.format("Booted a JRuby runtime in %d ms (load path %s)",
+                System.currentTimeMillis() - start, loadPath));
+
+        if (pooled) {
+            synchronized (ScriptingContainerPool.class) {
+                checkedOut.put(container, key);
+            }
+        }
+        return container;
+    }
+
+    /**
+     * Runs the scriptlet in a container checked out by the caller and returns
+     * its result, reusing the compiled unit if it was the last one parsed there.
+     */
+    public static Object runScriptlet(ScriptingContainer container, String scriptlet)
+    {
+        return JavaEmbedUtils.rubyToJava(parse(container, scriptlet).run());
+    }
+
+    /**
+     * Parses the scriptlet in a container checked out by the caller, unless it
+     * was the last scriptlet parsed there.
+     */
+    public static EmbedEvalUnit parse(ScriptingContainer container, String scriptlet)
+    {
+        Compiled holding;
+        synchronized (ScriptingContainerPool.class) {
+            holding = compiled.get(container);
+        }
+        if (holding != null && holding.scriptlet.equals(scriptlet)) {
+            return holding.unit;
+        }
+
+        long start = System.currentTimeMillis();
+        EmbedEvalUnit unit = container.parse(scriptlet);
+        LOG.info(String.format("container.parse in %d ms:\n%s", System.currentTimeMillis() - start, scriptlet));
+        synchronized (ScriptingContainerPool.class) {
+            // only pooled containers, the others aren't released
+            if (checkedOut.containsKey(container)) {
+                compiled.put(container, new Compiled(scriptlet, unit));
+            }
+        }
+        return unit;
+    }
+
+    /**
+     * Hands the container back for reuse, after dropping its variables.
+     * Containers that are not pooled, or beyond the idle limit, are terminated.
+     */
+    public static void release(ScriptingContainer container)
+    {
+        container.clear();
+        ScriptingContainer evicted = container;
+        synchronized (ScriptingContainerPool.class) {
+            Key key = checkedOut.remove(container);
+            if (key != null) {
+                Deque<ScriptingContainer> containers = idle.get(key);
+                if (containers == null) {
+                    containers = new ArrayDeque<ScriptingContainer>();
+                    idle.put(key, containers);
+                }
+                containers.push(container);
+                evicted = (containers.size() > MAX_IDLE_PER_KEY) ? containers.removeLast() : null;
+            }
+            if (evicted != null) {
+                compiled.remove(evicted);
+            }
+        }
+        if (evicted != null) {
+            evicted.terminate();
+        }
+    }
+}
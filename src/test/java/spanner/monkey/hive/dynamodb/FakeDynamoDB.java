@@ -0,0 +1,273 @@
+package spanner.monkey.hive.dynamodb;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for DynamoDB speaking its JSON protocol over HTTP, to
+ * point ddb_update.endpoint at off-cluster.
+ * It knows a single table with a string hash key and supports DescribeTable,
+ * UpdateItem and BatchWriteItem. Every request waits a fixed latency, each
+ * item costs one write capacity unit whatever its size, and writes beyond the
+ * enforced capacity (one second of burst) are throttled the way DynamoDB does
+ * it. Items are counted, not stored, and the time spent handling each write
+ * request is recorded.
+ */
+class FakeDynamoDB
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String THROTTLED = "com.amazonaws.dynamodb.v20120810#ProvisionedThroughputExceededException";
+
+    private final String tableName;
+    private final String hashKeyName;
+    private final long provisionedCapacity;
+    private final double enforcedCapacity;
+    private final long latencyMillis;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private double tokens;
+    private long last = System.nanoTime();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong throttledRequests = new AtomicLong();
+    private final AtomicLong writtenItems = new AtomicLong();
+    private final List<Long> writeLatencies = new ArrayList<Long>();
+
+    /**
+     * @param provisionedCapacity write capacity reported by DescribeTable
+     * @param enforcedCapacity write capacity actually granted, lower to simulate throttling
+     */
+    public FakeDynamoDB(String tableName, String hashKeyName, long provisionedCapacity, double enforcedCapacity,
+            long latencyMillis) throws IOException
+    {
+        this.tableName = tableName;
+        this.hashKeyName = hashKeyName;
+        this.provisionedCapacity = provisionedCapacity;
+        this.enforcedCapacity = enforcedCapacity;
+        this.latencyMillis = latencyMillis;
+        this.tokens = enforcedCapacity;
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try {
+                    FakeDynamoDB.this.handle(exchange);
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getEndpoint()
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    public long getThrottledRequests()
+    {
+        return throttledRequests.get();
+    }
+
+    /**
+     * Items written, also the consumed write capacity since items aren't charged by size.
+     */
+    public long getWrittenItems()
+    {
+        return writtenItems.get();
+    }
+
+    /**
+     * Nanoseconds spent on each UpdateItem and BatchWriteItem request, throttled ones included.
+     */
+    public synchronized long[] getWriteLatencies()
+    {
+        long[] ret = new long[writeLatencies.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = writeLatencies.get(i);
+        }
+        return ret;
+    }
+
+    private synchronized void recordWriteLatency(long nanos)
+    {
+        writeLatencies.add(nanos);
+    }
+
+    public void close()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Takes up to the wanted capacity units, returns how many were granted.
+     */
+    private synchronized int consume(int wanted)
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(enforcedCapacity, tokens + (now - last) * enforcedCapacity / 1_000_000_000L);
+        last = now;
+
+        int granted = (int) Math.min(wanted, Math.floor(tokens));
+        tokens -= granted;
+        return granted;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        long start = System.nanoTime();
+        String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+        InputStream in = exchange.getRequestBody();
+        JSONObject request = JSON.parseObject(new String(ByteStreams.toByteArray(in), UTF8));
+        String operation = (target == null) ? "" : target.substring(target.indexOf('.') + 1);
+
+        requests.incrementAndGet();
+        try {
+            Thread.sleep(latencyMillis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (operation.equals("DescribeTable")) {
+            respond(exchange, 200, describeTable());
+            return;
+        }
+
+        try {
+            handleWrite(exchange, operation, request);
+        }
+        finally {
+            recordWriteLatency(System.nanoTime() - start);
+        }
+    }
+
+    private void handleWrite(HttpExchange exchange, String operation, JSONObject request) throws IOException
+    {
+        if (operation.equals("UpdateItem")) {
+            if (consume(1) == 0) {
+                throttle(exchange);
+                return;
+            }
+            writtenItems.incrementAndGet();
+            JSONObject response = new JSONObject();
+            response.put("ConsumedCapacity", consumedCapacity(1));
+            respond(exchange, 200, response);
+        }
+        else if (operation.equals("BatchWriteItem")) {
+            JSONArray writes = request.getJSONObject("RequestItems").getJSONArray(tableName);
+            int granted = consume(writes.size());
+            if (granted == 0) {
+                throttle(exchange);
+                return;
+            }
+            writtenItems.addAndGet(granted);
+
+            JSONObject unprocessed = new JSONObject();
+            if (granted < writes.size()) {
+                unprocessed.put(tableName, new JSONArray(writes.subList(granted, writes.size())));
+            }
+            JSONArray consumed = new JSONArray();
+            consumed.add(consumedCapacity(granted));
+
+            JSONObject response = new JSONObject();
+            response.put("UnprocessedItems", unprocessed);
+            response.put("ConsumedCapacity", consumed);
+            respond(exchange, 200, response);
+        }
+        else {
+            JSONObject error = new JSONObject();
+            error.put("__type", "com.amazon.coral.validate#ValidationException");
+            error.put("message", "Unsupported operation " + operation);
+            respond(exchange, 400, error);
+        }
+    }
+
+    private void throttle(HttpExchange exchange) throws IOException
+    {
+        throttledRequests.incrementAndGet();
+        JSONObject error = new JSONObject();
+        error.put("__type", THROTTLED);
+        error.put("message", "The level of configured provisioned throughput for the table was exceeded.");
+        respond(exchange, 400, error);
+    }
+
+    private JSONObject consumedCapacity(int units)
+    {
+        JSONObject capacity = new JSONObject();
+        capacity.put("TableName", tableName);
+        capacity.put("CapacityUnits", (double) units);
+        return capacity;
+    }
+
+    private JSONObject describeTable()
+    {
+        JSONObject keyElement = new JSONObject();
+        keyElement.put("AttributeName", hashKeyName);
+        keyElement.put("KeyType", "HASH");
+        JSONArray keySchema = new JSONArray();
+        keySchema.add(keyElement);
+
+        JSONObject attribute = new JSONObject();
+        attribute.put("AttributeName", hashKeyName);
+        attribute.put("AttributeType", "S");
+        JSONArray attributes = new JSONArray();
+        attributes.add(attribute);
+
+        JSONObject throughput = new JSONObject();
+        throughput.put("ReadCapacityUnits", provisionedCapacity);
+        throughput.put("WriteCapacityUnits", provisionedCapacity);
+
+        JSONObject table = new JSONObject();
+        table.put("TableName", tableName);
+        table.put("TableStatus", "ACTIVE");
+        table.put("KeySchema", keySchema);
+        table.put("AttributeDefinitions", attributes);
+        table.put("ProvisionedThroughput", throughput);
+
+        JSONObject response = new JSONObject();
+        response.put("Table", table);
+        return response;
+    }
+
+    private void respond(HttpExchange exchange, int status, JSONObject body) throws IOException
+    {
+        byte[] bytes = body.toJSONString().getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "application/x-amz-json-1.0");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+}
@@ -0,0 +1,129 @@
+package spanner.monkey.hive.dynamodb;
+
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.mapred.JobConf;
+import spanner.monkey.hive.GenericUDFDynamodbUpdate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Runs ddb_update against a {@link FakeDynamoDB} in each writer mode and
+ * reports items/s, items written, throttled requests, the p50/p99 latency of
+ * evaluate(), which is what the reducer waits for per row, and the p50/p99
+ * latency of the write requests handled by the fake. In the async modes
+ * evaluate() only enqueues, so only the latter says how long writes take.
+ * <p>
+ * usage: WriterBenchmark [items] [provisioned WCU] [enforced WCU] [latency ms]
+ * <p>
+ * run from the test classpath, e.g.
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=spanner.monkey.hive.dynamodb.WriterBenchmark
+ */
+class WriterBenchmark
+{
+    private static final String TABLE = "benchmark";
+    private static final String HASH_KEY = "id";
+
+    public static void main(String[] args) throws Exception
+    {
+        int items = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        long provisioned = (args.length > 1) ? Long.parseLong(args[1]) : 1000;
+        double enforced = (args.length > 2) ? Double.parseDouble(args[2]) : provisioned * 0.8;
+        long latency = (args.length > 3) ? Long.parseLong(args[3]) : 5;
+
+        System.out.println(String.format("%d items, %d provisioned WCU, %.0f enforced WCU, %d ms latency",
+                items, provisioned, enforced, latency));
+        System.out.println(String.format("%-22s %10s %13s %8s %10s %12s %12s %13s %13s",
+                "mode", "items/s", "items written", "requests", "throttled",
+                "eval p50 us", "eval p99 us", "write p50 us", "write p99 us"));
+
+        run("update", false, 0, items, provisioned, enforced, latency);
+        run("update async x4", false, 4, items, provisioned, enforced, latency);
+        run("batch put", true, 0, items, provisioned, enforced, latency);
+        run("batch put async x4", true, 4, items, provisioned, enforced, latency);
+    }
+
+    private static void run(String mode, boolean batch, int writerThreads, int items,
+            long provisioned, double enforced, long latency) throws Exception
+    {
+        FakeDynamoDB fake = new FakeDynamoDB(TABLE, HASH_KEY, provisioned, enforced, latency);
+        try {
+            JobConf jobConf = new JobConf();
+            jobConf.setNumReduceTasks(1);
+            jobConf.set(UpdateHelper.CONF_DYNAMODB_NAME, TABLE);
+            jobConf.set(UpdateHelper.CONF_DYNAMODB_ENDPOINT, fake.getEndpoint());
+            jobConf.set(UpdateHelper.CONF_DYNAMODB_ACCESS_KEY, "fake");
+            jobConf.set(UpdateHelper.CONF_DYNAMODB_SECRET_KEY, "fake");
+            jobConf.setFloat(UpdateHelper.CONF_DYNAMODB_WRITE_THROUGHPUT_PERCENTAGE, 1.0f);
+            jobConf.setInt(UpdateHelper.CONF_DYNAMODB_WRITER_THREADS, writerThreads);
+
+            ObjectInspector stringOI = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+            ObjectInspector[] parameterOIs;
+            if (batch) {
+                parameterOIs = new ObjectInspector[]{stringOI, stringOI,
+                        ObjectInspectorFactory.getStandardMapObjectInspector(stringOI, stringOI)};
+            }
+            else {
+                parameterOIs = new ObjectInspector[]{stringOI, stringOI, stringOI, stringOI};
+            }
+
+            GenericUDFDynamodbUpdate udf = new GenericUDFDynamodbUpdate();
+            udf.configure(MapredContext.init(false, jobConf));
+            udf.initialize(parameterOIs);
+
+            long[] latencies = new long[items];
+            long start = System.nanoTime();
+            for (int i = 0; i < items; i++) {
+                String key = "key-" + i;
+                DeferredObject[] parameters;
+                if (batch) {
+                    Map<String, String> item = Collections.singletonMap("value", Integer.toString(i));
+                    parameters = new DeferredObject[]{new DeferredJavaObject(key), new DeferredJavaObject(null),
+                            new DeferredJavaObject(item)};
+                }
+                else {
+                    parameters = new DeferredObject[]{new DeferredJavaObject(key), new DeferredJavaObject(null),
+                            new DeferredJavaObject("value"), new DeferredJavaObject(Integer.toString(i))};
+                }
+
+                long before = System.nanoTime();
+                udf.evaluate(parameters);
+                latencies[i] = System.nanoTime() - before;
+            }
+            udf.close();
+            long elapsed = System.nanoTime() - start;
+            MapredContext.close();
+
+            Arrays.sort(latencies);
+            long[] writeLatencies = fake.getWriteLatencies();
+            Arrays.sort(writeLatencies);
+            System.out.println(String.format("%-22s %10.1f %13d %8d %10d %12d %12d %13d %13d",
+                    mode,
+                    items * 1_000_000_000.0 / elapsed,
+                    fake.getWrittenItems(),
+                    fake.getRequests(),
+                    fake.getThrottledRequests(),
+                    percentile(latencies, 0.5) / 1000,
+                    percentile(latencies, 0.99) / 1000,
+                    percentile(writeLatencies, 0.5) / 1000,
+                    percentile(writeLatencies, 0.99) / 1000));
+        }
+        finally {
+            fake.close();
+        }
+    }
+
+    private static long percentile(long[] sorted, double p)
+    {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+}